@@ -27,16 +27,39 @@
 package com.sumologic.logback;
 
 import com.sumologic.logback.aggregation.SumoBufferFlusher;
+import com.sumologic.logback.encoder.EventEncoder;
+import com.sumologic.logback.encoder.LoggingEventFormatter;
+import com.sumologic.logback.encoder.SourceHeadersResolver;
+import com.sumologic.logback.http.EndpointSelector;
+import com.sumologic.logback.http.RetryQueue;
 import com.sumologic.logback.http.SumoHttpSender;
+import com.sumologic.logback.message.ByteChunkPool;
+import com.sumologic.logback.message.DeferredMessage;
+import com.sumologic.logback.message.MessageFormatter;
+import com.sumologic.logback.message.OffHeapArena;
+import com.sumologic.logback.message.SourceHeaders;
+import com.sumologic.logback.message.SpilledMessage;
+import com.sumologic.logback.message.SumoMessage;
+import com.sumologic.logback.message.WriteAheadLog;
+import com.sumologic.logback.queue.BufferWithDiskSpillover;
 import com.sumologic.logback.queue.BufferWithEviction;
 import com.sumologic.logback.queue.BufferWithFifoEviction;
+import com.sumologic.logback.queue.BufferWithPriorityEviction;
+import com.sumologic.logback.queue.RingBufferWithFifoEviction;
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.classic.spi.IThrowableProxy;
-import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
 import ch.qos.logback.core.Layout;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 import static com.sumologic.logback.queue.CostBoundedConcurrentQueue.CostAssigner;
 
 
@@ -46,24 +69,83 @@ import static com.sumologic.logback.queue.CostBoundedConcurrentQueue.CostAssigne
  * @author Jose Muniz (jose@sumologic.com)
  */
 @Slf4j
-public class BufferedSumoLogicAppender extends AppenderBase<ILoggingEvent> {
+public class BufferedSumoLogicAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
     private Layout<ILoggingEvent> layout;
+    private EventEncoder<ILoggingEvent> encoder;   // When set, events are encoded into pooled byte chunks
 
-    private String url = null;
+    private String url = null;                // One collector URL, or several separated by commas
+    private String endpointSelection = "round-robin"; // Among several URLs: "round-robin" or "least-latency"
+    private int endpointFailureThreshold = 3; // Failures in a row before failing over from a URL
+    private long endpointQuarantine = 30000;  // How long a failing URL is left alone (ms)
     private int connectionTimeout = 1000;
     private int socketTimeout = 60000;
-    private int retryInterval = 10000;        // Once a request fails, how often until we retry.
+    private int retryInterval = 10000;        // Once a request fails, how long until we retry (ms)
+    private long maxRetryInterval = 60000;    // Retry delays double up to this (ms)
+    private int maxRetryAttempts = 0;         // Attempts before a batch is dropped; 0 means unlimited
+    private long maxRetryAge = 0;             // Age after which a failing batch is dropped (ms); 0 means unlimited
+    private long maxRetryQueueSizeBytes = 1000000; // Bytes of failed batches waiting to be retried
+    private String compression = "none";      // Content-Encoding of requests: "none", "gzip" or "deflate"
+    private long compressionThreshold = 1024; // Requests smaller than this many bytes are sent uncompressed
 
     private long messagesPerRequest = 100;    // How many messages need to be in the queue before we flush
+    private long maxMessagesPerRequest = 0;   // Most messages sent in one request; 0 means unlimited
+    private long maxBytesPerRequest = 1000000; // Most bytes sent in one request, before compression; 0 means unlimited
     private long maxFlushInterval = 10000;    // Maximum interval between flushes (ms)
-    private long flushingAccuracy = 250;      // How often the flushed thread looks into the message queue (ms)
+    private long flushingAccuracy = 250;      // Unused: the buffer wakes the flusher up when a batch is ready
     private String sourceName = "sumo-logback-appender"; // Name to stamp for querying with _sourceName
+    private String sourceCategory = null;     // Category to stamp; null leaves the source's own
+    private String sourceHost = null;         // Host to stamp; null leaves the source's own
+    private String sourceNameKey = null;      // MDC key or marker giving an event its own source name
+    private String sourceCategoryKey = null;  // MDC key or marker giving an event its own source category
+    private String sourceHostKey = null;      // MDC key or marker giving an event its own source host
+    private String fieldKeys = null;          // MDC keys or markers sent as X-Sumo-Fields, separated by commas
 
     private long maxQueueSizeBytes = 1000000;
-
-    private SumoHttpSender sender;
+    private String bufferType = "fifo";       // "fifo" (locking linked queue), "ring" (lock-free ring buffer)
+                                              // or "priority" (evicts lower levels first)
+    private int ringBufferSlots = 16384;      // Maximum number of messages held by the "ring" buffer
+    private long offHeapBufferSizeBytes = 0;  // Direct memory holding buffered messages instead of the heap;
+                                              // replaces maxQueueSizeBytes as capacity. 0 keeps them on the heap
+    private int offHeapBlockSize = 256;       // Size of the blocks off-heap messages are stored in
+    private String spillDirectory = null;     // Where messages past maxQueueSizeBytes go; null drops them.
+                                              // Written by the logging thread which overflows the buffer,
+                                              // under its lock. Not used with deferredFormatting
+    private long maxSpillSizeBytes = 100000000; // Disk space spilled messages may take
+    private int spillSegmentSize = 8388608;   // Size of each memory-mapped spill file
+    private String walDirectory = null;       // Where accepted messages are logged to be sent after a crash; null logs none.
+                                              // Not used with deferredFormatting. Appending takes a lock and a
+                                              // write call per event, so logging threads take turns
+    private String walSync = "periodic";      // Forcing the log to disk: "always", "periodic" or "never"
+    private long walSyncInterval = 1000;      // How often the "periodic" policy forces the log to disk (ms)
+    private int walSegmentSize = 8388608;     // Size of each write-ahead log file
+    private long maxWalSizeBytes = 100000000; // Disk space the write-ahead log may take
+    private int chunkSize = 512;              // Size of the pooled byte chunks used with an encoder
+    private boolean deferredFormatting = false; // Format events on the flushing side instead of in append()
+    private int formatterThreads = 0;         // Threads formatting deferred batches; 0 formats on the flusher thread
+    private int senderThreads = 0;            // Batches sent at once; 0 or 1 sends on the flusher thread
+    private boolean preserveOrder = false;    // Send the batches of a source name one at a time, in order;
+                                              // a batch which has to be retried is overtaken by later ones
+    private String transport = "sync";        // "sync" (a thread per request) or "async" (non-blocking I/O)
+    private int maxInFlightRequests = 8;      // Requests in flight at once with the "async" transport
+    private int maxConnectionsPerRoute = 8;   // Connections kept open to the endpoint
+    private long keepAlive = 60000;           // Longest a connection is kept open (ms); 0 leaves it to the server
+    private long idleConnectionTimeout = 30000; // Idle connections are closed after this (ms); 0 keeps them
+    private int validateAfterInactivity = 2000; // Connections idle longer are checked before reuse (ms);
+                                              // "sync" transport only
+    private int warmupConnections = 0;        // Connections opened in the background at start; 0 opens none.
+                                              // "sync" transport only
+
+    private volatile SumoHttpSender sender;
     private SumoBufferFlusher flusher;
-    volatile private BufferWithEviction<String> queue;
+    volatile private BufferWithEviction<SumoMessage> queue;
+    private RetryQueue retryQueue;
+    private WriteAheadLog writeAheadLog;
+    private ByteChunkPool chunkPool;
+    private OffHeapArena offHeapArena;
+    private volatile MessageFormatter<ILoggingEvent> formatter;
+    private volatile SourceHeadersResolver sourceHeaders;
+    private ExecutorService formatterPool;
+    private ExecutorService senderPool;
 
     /* All the parameters */
 
@@ -75,19 +157,182 @@ public class BufferedSumoLogicAppender extends AppenderBase<ILoggingEvent> {
         this.maxQueueSizeBytes = maxQueueSizeBytes;
     }
 
+    public void setBufferType(String bufferType) {
+        this.bufferType = bufferType;
+    }
+
+    public void setRingBufferSlots(int ringBufferSlots) {
+        this.ringBufferSlots = ringBufferSlots;
+    }
+
+    public void setOffHeapBufferSizeBytes(long offHeapBufferSizeBytes) {
+        this.offHeapBufferSizeBytes = offHeapBufferSizeBytes;
+    }
+
+    public void setOffHeapBlockSize(int offHeapBlockSize) {
+        this.offHeapBlockSize = offHeapBlockSize;
+    }
+
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public void setMaxSpillSizeBytes(long maxSpillSizeBytes) {
+        this.maxSpillSizeBytes = maxSpillSizeBytes;
+    }
+
+    public void setSpillSegmentSize(int spillSegmentSize) {
+        this.spillSegmentSize = spillSegmentSize;
+    }
+
+    public void setWalDirectory(String walDirectory) {
+        this.walDirectory = walDirectory;
+    }
+
+    public void setWalSync(String walSync) {
+        this.walSync = walSync;
+    }
+
+    public void setWalSyncInterval(long walSyncInterval) {
+        this.walSyncInterval = walSyncInterval;
+    }
+
+    public void setWalSegmentSize(int walSegmentSize) {
+        this.walSegmentSize = walSegmentSize;
+    }
+
+    public void setMaxWalSizeBytes(long maxWalSizeBytes) {
+        this.maxWalSizeBytes = maxWalSizeBytes;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public void setDeferredFormatting(boolean deferredFormatting) {
+        this.deferredFormatting = deferredFormatting;
+    }
+
+    public void setFormatterThreads(int formatterThreads) {
+        this.formatterThreads = formatterThreads;
+    }
+
+    public void setSenderThreads(int senderThreads) {
+        this.senderThreads = senderThreads;
+    }
+
+    public void setPreserveOrder(boolean preserveOrder) {
+        this.preserveOrder = preserveOrder;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public void setKeepAlive(long keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public void setIdleConnectionTimeout(long idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    public void setValidateAfterInactivity(int validateAfterInactivity) {
+        this.validateAfterInactivity = validateAfterInactivity;
+    }
+
+    public void setWarmupConnections(int warmupConnections) {
+        this.warmupConnections = warmupConnections;
+    }
+
+    /**
+     * Return how many requests were sent since this appender was created.
+     */
+    public long getRequestCount() {
+        SumoHttpSender sender = this.sender;
+        return sender != null ? sender.getRequestCount() : 0;
+    }
+
+    /**
+     * Return how many of those requests reused an open connection, saving a handshake.
+     */
+    public long getReusedConnectionCount() {
+        SumoHttpSender sender = this.sender;
+        return sender != null ? sender.getReusedConnectionCount() : 0;
+    }
+
+    /**
+     * Return how many connections were opened, each paying for a handshake.
+     */
+    public long getOpenedConnectionCount() {
+        SumoHttpSender sender = this.sender;
+        return sender != null ? sender.getOpenedConnectionCount() : 0;
+    }
+
     public void setMessagesPerRequest(long messagesPerRequest) {
         this.messagesPerRequest = messagesPerRequest;
     }
 
+    public void setMaxMessagesPerRequest(long maxMessagesPerRequest) {
+        this.maxMessagesPerRequest = maxMessagesPerRequest;
+    }
+
+    public void setMaxBytesPerRequest(long maxBytesPerRequest) {
+        this.maxBytesPerRequest = maxBytesPerRequest;
+    }
 
     public void setMaxFlushInterval(long maxFlushInterval) {
         this.maxFlushInterval = maxFlushInterval;
     }
 
+    public void setEndpointSelection(String endpointSelection) {
+        this.endpointSelection = endpointSelection;
+    }
+
+    public void setEndpointFailureThreshold(int endpointFailureThreshold) {
+        this.endpointFailureThreshold = endpointFailureThreshold;
+    }
+
+    public void setEndpointQuarantine(long endpointQuarantine) {
+        this.endpointQuarantine = endpointQuarantine;
+    }
+
     public void setSourceName(String sourceName) {
         this.sourceName = sourceName;
     }
 
+    public void setSourceCategory(String sourceCategory) {
+        this.sourceCategory = sourceCategory;
+    }
+
+    public void setSourceHost(String sourceHost) {
+        this.sourceHost = sourceHost;
+    }
+
+    public void setSourceNameKey(String sourceNameKey) {
+        this.sourceNameKey = sourceNameKey;
+    }
+
+    public void setSourceCategoryKey(String sourceCategoryKey) {
+        this.sourceCategoryKey = sourceCategoryKey;
+    }
+
+    public void setSourceHostKey(String sourceHostKey) {
+        this.sourceHostKey = sourceHostKey;
+    }
+
+    public void setFieldKeys(String fieldKeys) {
+        this.fieldKeys = fieldKeys;
+    }
+
     public void setFlushingAccuracy(long flushingAccuracy) {
         this.flushingAccuracy = flushingAccuracy;
     }
@@ -104,6 +349,30 @@ public class BufferedSumoLogicAppender extends AppenderBase<ILoggingEvent> {
         this.retryInterval = retryInterval;
     }
 
+    public void setMaxRetryInterval(long maxRetryInterval) {
+        this.maxRetryInterval = maxRetryInterval;
+    }
+
+    public void setMaxRetryAttempts(int maxRetryAttempts) {
+        this.maxRetryAttempts = maxRetryAttempts;
+    }
+
+    public void setMaxRetryAge(long maxRetryAge) {
+        this.maxRetryAge = maxRetryAge;
+    }
+
+    public void setMaxRetryQueueSizeBytes(long maxRetryQueueSizeBytes) {
+        this.maxRetryQueueSizeBytes = maxRetryQueueSizeBytes;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    public void setCompressionThreshold(long compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
     @Override
     public void start() {
         super.start();
@@ -111,39 +380,135 @@ public class BufferedSumoLogicAppender extends AppenderBase<ILoggingEvent> {
 
         /* Initialize queue */
         if (queue == null) {
-            queue = new BufferWithFifoEviction<String>(maxQueueSizeBytes, new CostAssigner<String>() {
-              @Override
-              public long cost(String e) {
-                  // Note: This is only an estimate for total byte usage, since in UTF-8 encoding,
-                  // the size of one character may be > 1 byte.
-                 return e.length();
-              }
+            queue = createBuffer();
+            queue.setEvictionListener(new BufferWithEviction.EvictionListener<SumoMessage>() {
+                @Override
+                public void evicted(SumoMessage message) {
+                    dropped(message);
+                }
             });
         } else {
-            queue.setCapacity(maxQueueSizeBytes);
+            queue.setCapacity(bufferCapacity());
+        }
+
+        /* Initialize off-heap arena; like the buffer, it survives a restart */
+        if (offHeapBufferSizeBytes > 0 && offHeapArena == null) {
+            if (deferredFormatting) {
+                log.warn("Deferred formatting keeps events on the heap, ignoring offHeapBufferSizeBytes");
+            } else {
+                offHeapArena = new OffHeapArena(offHeapBufferSizeBytes, offHeapBlockSize);
+            }
+        }
+
+        /* Initialize retry queue; like the buffer, it survives a restart */
+        long retryInterval = retryInterval();
+        if (retryQueue == null) {
+            retryQueue = new RetryQueue(maxRetryQueueSizeBytes, retryInterval, maxRetryInterval,
+                    maxRetryAttempts, maxRetryAge);
+        } else {
+            retryQueue.configure(maxRetryQueueSizeBytes, retryInterval, maxRetryInterval,
+                    maxRetryAttempts, maxRetryAge);
+        }
+
+        /* Initialize write-ahead log, and buffer what the last process left unsent */
+        if (walDirectory != null && writeAheadLog == null && deferredFormatting) {
+            // Logging them would format events on the application thread after all
+            log.warn("Deferred formatting formats events on the flushing side, ignoring walDirectory");
+        } else if (walDirectory != null && writeAheadLog == null) {
+            try {
+                writeAheadLog = new WriteAheadLog(new File(walDirectory), walSegmentSize, maxWalSizeBytes);
+                for (SumoMessage message : writeAheadLog.replay()) {
+                    if (!queue.add(message)) {
+                        dropped(message);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Unable to open the write-ahead log in " + walDirectory + ", logging nothing ahead", e);
+            }
         }
+        if (writeAheadLog != null) {
+            writeAheadLog.setSyncPolicy(walSyncPolicy(), walSyncInterval);
+        }
+
+        /* Initialize chunk pool, sized to hold a full buffer */
+        if (encoder != null && chunkPool == null) {
+            chunkPool = new ByteChunkPool(chunkSize, (int) Math.min(Integer.MAX_VALUE / 2,
+                    Math.max(1, maxQueueSizeBytes / chunkSize)));
+        }
+        formatter = new LoggingEventFormatter(layout, encoder, chunkPool);
+
+        /* Events are batched apart by source name, category, host and fields */
+        sourceHeaders = new SourceHeadersResolver(new SourceHeaders(sourceName, sourceCategory, sourceHost, null),
+                sourceNameKey, sourceCategoryKey, sourceHostKey, fieldKeys);
 
         /* Initialize sender */
+        boolean async = asyncTransport();
         if (sender == null)
             sender = new SumoHttpSender();
 
         sender.setRetryInterval(retryInterval);
+        sender.setMaxRetryInterval(maxRetryInterval);
         sender.setConnectionTimeout(connectionTimeout);
         sender.setSocketTimeout(socketTimeout);
+        sender.setEndpointFailover(endpointFailureThreshold, endpointQuarantine);
+        sender.setEndpointSelection(endpointSelection());
         sender.setUrl(url);
+        sender.setCompressionMethod(compressionMethod());
+        sender.setCompressionThreshold(compressionThreshold);
+        sender.setAsync(async);
+        sender.setMaxConnections(maxConnectionsPerRoute);
+        sender.setKeepAlive(keepAlive);
+        sender.setIdleConnectionTimeout(idleConnectionTimeout);
+        sender.setValidateAfterInactivity(validateAfterInactivity);
+        sender.setWarmupConnections(warmupConnections);
 
         sender.init();
 
         /* Initialize flusher  */
         if (flusher != null)
             flusher.stop();
+        if (formatterPool != null)
+            formatterPool.shutdownNow();
+
+        if (senderPool != null)
+            senderPool.shutdown();
+
+        formatterPool = null;
+        if (deferredFormatting && formatterThreads > 0) {
+            formatterPool = Executors.newFixedThreadPool(formatterThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r);
+                    thread.setName("SumoFormatterThread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        senderPool = null;
+        if (!async && senderThreads > 1) {
+            senderPool = Executors.newFixedThreadPool(senderThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r);
+                    thread.setName("SumoSenderThread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
 
-        flusher = new SumoBufferFlusher(flushingAccuracy,
-                    messagesPerRequest,
+        flusher = new SumoBufferFlusher(messagesPerRequest,
                     maxFlushInterval,
                     sourceName,
                     sender,
                     queue);
+        flusher.setFormatterPool(formatterPool, formatterThreads);
+        flusher.setRequestLimits(maxMessagesPerRequest, maxBytesPerRequest);
+        flusher.setRetryQueue(retryQueue);
+        flusher.setSenderPool(senderPool, async ? maxInFlightRequests : senderThreads, preserveOrder);
+        flusher.setWriteAheadLog(writeAheadLog);
         flusher.start();
 
     }
@@ -155,17 +520,29 @@ public class BufferedSumoLogicAppender extends AppenderBase<ILoggingEvent> {
             return;
         }
 
-        StringBuilder builder = new StringBuilder(1024);
-        builder.append(layout.doLayout(event));
-
-        // Append stack trace if present
-        IThrowableProxy error = event.getThrowableProxy();
-        if (error != null) {
-//            formattedEvent += ExceptionFormatter.formatException(error);
+        SumoMessage message;
+        if (deferredFormatting) {
+            event.prepareForDeferredProcessing();
+            message = new DeferredMessage(event, formatter);
+        } else {
+            message = formatter.format(event);
+            if (message == null) {
+                return;
+            }
         }
+        message.setHeaders(sourceHeaders.resolve(event));
+        message.setLevel(event.getLevel().toInt());
 
         try {
-            queue.add(builder.toString());
+            if (writeAheadLog != null) {
+                writeAheadLog.append(message);
+            }
+            if (offHeapArena != null) {
+                message = offHeapArena.store(message);
+            }
+            if (!queue.add(message)) {
+                dropped(message);
+            }
         } catch (Exception e) {
             log.error("Unable to insert log entry into log queue. ", e);
         }
@@ -179,15 +556,145 @@ public class BufferedSumoLogicAppender extends AppenderBase<ILoggingEvent> {
 
         flusher.stop();
         flusher = null;
+
+        if (formatterPool != null) {
+            formatterPool.shutdownNow();
+            formatterPool = null;
+        }
+
+        // Batches still waiting fail against the closed sender and land on the retry queue.
+        if (senderPool != null) {
+            senderPool.shutdown();
+            senderPool = null;
+        }
+
+        if (writeAheadLog != null) {
+            try {
+                writeAheadLog.sync();
+            } catch (IOException e) {
+                log.error("Unable to sync the write-ahead log", e);
+            }
+        }
     }
 
     // Private bits.
 
+    // A message evicted or rejected by the buffer is given up on; it must not be replayed either.
+    private void dropped(SumoMessage message) {
+        WriteAheadLog writeAheadLog = this.writeAheadLog;
+        if (writeAheadLog != null) {
+            writeAheadLog.acknowledge(Collections.singletonList(message));
+        }
+        message.release();
+    }
+
+    private BufferWithEviction<SumoMessage> createBuffer() {
+        CostAssigner<SumoMessage> costAssigner = new CostAssigner<SumoMessage>() {
+            @Override
+            public long cost(SumoMessage e) {
+                return e.cost();
+            }
+        };
+
+        if (spillDirectory != null && deferredFormatting) {
+            // Spilled events would be formatted by the producer that made them spill
+            log.warn("Deferred formatting formats events on the flushing side, ignoring spillDirectory");
+        } else if (spillDirectory != null) {
+            if (!"fifo".equalsIgnoreCase(bufferType)) {
+                log.warn("Spilling to disk keeps a fifo buffer in memory, ignoring bufferType [{}]", bufferType);
+            }
+            try {
+                return new BufferWithDiskSpillover<SumoMessage>(bufferCapacity(), costAssigner,
+                        new File(spillDirectory), spillSegmentSize, maxSpillSizeBytes, SpilledMessage.SERIALIZER);
+            } catch (IOException e) {
+                log.error("Unable to spill to " + spillDirectory + ", keeping messages in memory only", e);
+            }
+        }
+        if ("ring".equalsIgnoreCase(bufferType)) {
+            return new RingBufferWithFifoEviction<SumoMessage>(bufferCapacity(), ringBufferSlots, costAssigner);
+        }
+        if ("priority".equalsIgnoreCase(bufferType)) {
+            return new BufferWithPriorityEviction<SumoMessage>(bufferCapacity(), 4, costAssigner,
+                    new BufferWithPriorityEviction.PriorityAssigner<SumoMessage>() {
+                        @Override
+                        public int priority(SumoMessage e) {
+                            // DEBUG and TRACE go first, then INFO, then WARN; ERROR last
+                            if (e.getLevel() >= Level.ERROR_INT) return 3;
+                            if (e.getLevel() >= Level.WARN_INT) return 2;
+                            if (e.getLevel() >= Level.INFO_INT) return 1;
+                            return 0;
+                        }
+                    });
+        }
+        if (!"fifo".equalsIgnoreCase(bufferType)) {
+            log.warn("Unknown bufferType [{}], falling back to fifo", bufferType);
+        }
+        return new BufferWithFifoEviction<SumoMessage>(bufferCapacity(), costAssigner);
+    }
+
+    // Off-heap, the buffer is bounded by the arena; messages left on the heap when it is full count too.
+    private long bufferCapacity() {
+        return offHeapBufferSizeBytes > 0 && !deferredFormatting ? offHeapBufferSizeBytes : maxQueueSizeBytes;
+    }
+
+    private long retryInterval() {
+        if (retryInterval <= 0) {
+            log.warn("Invalid retryInterval [{}], using 10000", retryInterval);
+            return 10000;
+        }
+        return retryInterval;
+    }
+
+    private String compressionMethod() {
+        if ("gzip".equalsIgnoreCase(compression) || "deflate".equalsIgnoreCase(compression)) {
+            return compression.toLowerCase();
+        }
+        if (compression != null && !"none".equalsIgnoreCase(compression)) {
+            log.warn("Unknown compression [{}], sending uncompressed", compression);
+        }
+        return null;
+    }
+
+    private String walSyncPolicy() {
+        if (WriteAheadLog.ALWAYS.equalsIgnoreCase(walSync) || WriteAheadLog.NEVER.equalsIgnoreCase(walSync)) {
+            return walSync.toLowerCase();
+        }
+        if (walSync != null && !WriteAheadLog.PERIODIC.equalsIgnoreCase(walSync)) {
+            log.warn("Unknown walSync [{}], syncing periodically", walSync);
+        }
+        return WriteAheadLog.PERIODIC;
+    }
+
+    private String endpointSelection() {
+        if (EndpointSelector.LEAST_LATENCY.equalsIgnoreCase(endpointSelection)) {
+            return EndpointSelector.LEAST_LATENCY;
+        }
+        if (endpointSelection != null && !EndpointSelector.ROUND_ROBIN.equalsIgnoreCase(endpointSelection)) {
+            log.warn("Unknown endpoint selection [{}], using round-robin", endpointSelection);
+        }
+        return EndpointSelector.ROUND_ROBIN;
+    }
+
+    private boolean asyncTransport() {
+        if ("async".equalsIgnoreCase(transport)) {
+            return true;
+        }
+        if (transport != null && !"sync".equalsIgnoreCase(transport)) {
+            log.warn("Unknown transport [{}], using sync", transport);
+        }
+        return false;
+    }
+
     private boolean checkEntryConditions() {
+        SumoHttpSender sender = this.sender;
         return sender != null && sender.isInitialized();
     }
 
     public void setLayout(Layout<ILoggingEvent> layout) {
         this.layout = layout;
     }
+
+    public void setEncoder(EventEncoder<ILoggingEvent> encoder) {
+        this.encoder = encoder;
+    }
 }
@@ -26,40 +26,66 @@
 package com.sumologic.logback;
 
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.classic.spi.IThrowableProxy;
-import ch.qos.logback.core.AppenderBase;
 import ch.qos.logback.core.Layout;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import com.sumologic.logback.http.HttpConnectionPool;
 import lombok.extern.slf4j.Slf4j;
 
 /**
- * Appender that sends log messages to Sumo Logic.
+ * Appender that sends log messages to Sumo Logic, one request per event.
+ * <p>
+ * In async mode, events are formatted on the calling thread and queued for a pool of workers to
+ * send, so that a slow endpoint does not hold up the application. When the queue is full, the
+ * event is dropped, or with the "block" policy the caller waits up to <tt>blockTimeout</tt> ms
+ * for room before it is dropped. Callers are not serialized, so a caller waiting for room does
+ * not hold up the others.
  *
  * @author Stefan Zier (stefan@sumologic.com)
  * @author Scott Bessler (scott@relateiq.com) adapted log4j appender for logback
  */
 @Slf4j
-public class SumoLogicAppender extends AppenderBase<ILoggingEvent> {
+public class SumoLogicAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
     private Layout<ILoggingEvent> layout;
 
     private String url = null;
     private int connectionTimeout = 1000;
     private int socketTimeout = 60000;
+    private int maxConnectionsPerRoute = 8;   // Connections kept open to the endpoint
+    private long keepAlive = 60000;           // Longest a connection is kept open (ms); 0 leaves it to the server
+    private long idleConnectionTimeout = 30000; // Idle connections are closed after this (ms); 0 keeps them
+    private int validateAfterInactivity = 2000; // Connections idle longer are checked before reuse (ms)
+    private boolean async = false;            // Send from worker threads instead of the calling thread
+    private int asyncQueueSize = 1024;        // Events waiting for a worker in async mode
+    private int asyncWorkers = 2;             // Threads sending in async mode
+    private String overflowPolicy = "drop";   // When the queue is full: "drop" or "block"
+    private long blockTimeout = 100;          // Longest the "block" policy waits for room (ms)
 
-    private HttpClient httpClient = null;
+    // How long stop() waits for the workers to send what is queued
+    private static final long SHUTDOWN_WAIT = 1000;
+
+    private final HttpConnectionPool connectionPool = new HttpConnectionPool();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile CloseableHttpClient httpClient = null;
+    private volatile BlockingQueue<String> asyncQueue;
+    private ExecutorService asyncPool;
+    private volatile boolean sending;
+    private volatile boolean overflowing;
 
     public void setUrl(String url) {
         this.url = url;
@@ -73,43 +99,195 @@ public class SumoLogicAppender extends AppenderBase<ILoggingEvent> {
         this.socketTimeout = socketTimeout;
     }
 
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public void setKeepAlive(long keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public void setIdleConnectionTimeout(long idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    public void setValidateAfterInactivity(int validateAfterInactivity) {
+        this.validateAfterInactivity = validateAfterInactivity;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public void setAsyncQueueSize(int asyncQueueSize) {
+        this.asyncQueueSize = asyncQueueSize;
+    }
+
+    public void setAsyncWorkers(int asyncWorkers) {
+        this.asyncWorkers = asyncWorkers;
+    }
+
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+
+    /**
+     * Return how many events were dropped in async mode because the queue was full.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Return how many requests were sent since this appender was created.
+     */
+    public long getRequestCount() {
+        return connectionPool.getRequestCount();
+    }
+
+    /**
+     * Return how many of those requests reused an open connection, saving a handshake.
+     */
+    public long getReusedConnectionCount() {
+        return connectionPool.getReusedConnectionCount();
+    }
+
     @Override
     public void start() {
         super.start();
-        HttpParams params = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
-        HttpConnectionParams.setSoTimeout(params, socketTimeout);
-        httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(), params);
+        connectionPool.setConnectionTimeout(connectionTimeout);
+        connectionPool.setSocketTimeout(socketTimeout);
+        connectionPool.setMaxConnections(maxConnectionsPerRoute);
+        connectionPool.setKeepAlive(keepAlive);
+        connectionPool.setIdleTimeout(idleConnectionTimeout);
+        connectionPool.setValidateAfterInactivity(validateAfterInactivity);
+        httpClient = connectionPool.createClient();
+
+        if (async) {
+            startWorkers();
+        }
+    }
+
+    private void startWorkers() {
+        if (overflowPolicy != null && !"drop".equalsIgnoreCase(overflowPolicy)
+                && !"block".equalsIgnoreCase(overflowPolicy)) {
+            log.warn("Unknown overflow policy [{}], dropping events", overflowPolicy);
+        }
+
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(Math.max(1, asyncQueueSize));
+        final CloseableHttpClient client = httpClient;
+        int workers = Math.max(1, asyncWorkers);
+        asyncQueue = queue;
+        asyncPool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName("SumoAsyncSenderThread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        sending = true;
+        for (int i = 0; i < workers; i++) {
+            asyncPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // Once stopped, only send what is still queued
+                        while (sending || !queue.isEmpty()) {
+                            String data = queue.poll(100, TimeUnit.MILLISECONDS);
+                            if (data != null) {
+                                sendToSumo(client, data);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
     }
 
     @Override
     protected void append(ILoggingEvent event) {
-        if (!checkEntryConditions()) {
+        // Read once, stop() may clear these while we are appending
+        CloseableHttpClient client = httpClient;
+        BlockingQueue<String> queue = asyncQueue;
+        if (!checkEntryConditions(client)) {
             return;
         }
 
         StringBuilder builder = new StringBuilder(1024);
         builder.append(layout.doLayout(event));
 
-        // Append stack trace if present
-        IThrowableProxy error = event.getThrowableProxy();
-        if (error != null) {
-//            formattedEvent += ExceptionFormatter.formatException(error);
+        if (queue != null) {
+            enqueue(queue, builder.toString());
+        } else {
+            sendToSumo(client, builder.toString());
+        }
+    }
+
+    private void enqueue(BlockingQueue<String> queue, String data) {
+        boolean queued;
+        if ("block".equalsIgnoreCase(overflowPolicy)) {
+            try {
+                queued = queue.offer(data, blockTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+        } else {
+            queued = queue.offer(data);
         }
 
-        sendToSumo(builder.toString());
+        if (queued) {
+            overflowing = false;
+            return;
+        }
+        droppedCount.incrementAndGet();
+        // Once per overflow, not for every event dropped
+        if (!overflowing) {
+            overflowing = true;
+            log.warn("Send queue full, dropping log events");
+        }
     }
 
     @Override
     public void stop() {
         super.stop();
-        httpClient.getConnectionManager().shutdown();
-        httpClient = null;
+        if (asyncPool != null) {
+            sending = false;
+            asyncPool.shutdown();
+            try {
+                if (!asyncPool.awaitTermination(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS)) {
+                    log.warn("Dropping {} log events not sent yet", asyncQueue.size());
+                    asyncPool.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                asyncPool.shutdownNow();
+            }
+            asyncPool = null;
+            asyncQueue = null;
+        }
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                log.warn("Could not close the HTTP client", e);
+            }
+            httpClient = null;
+        }
     }
 
     // Private bits.
 
-    private boolean checkEntryConditions() {
+    private boolean checkEntryConditions(CloseableHttpClient httpClient) {
         if (httpClient == null) {
             log.warn("HttpClient not initialized.");
             return false;
@@ -118,7 +296,7 @@ public class SumoLogicAppender extends AppenderBase<ILoggingEvent> {
         return true;
     }
 
-    private void sendToSumo(String data) {
+    private void sendToSumo(CloseableHttpClient httpClient, String data) {
         HttpPost post = null;
         try {
             post = new HttpPost(url);
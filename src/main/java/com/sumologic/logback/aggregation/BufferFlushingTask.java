@@ -25,8 +25,12 @@
  */
 package com.sumologic.logback.aggregation;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.sumologic.logback.queue.BufferWithEviction;
 
@@ -40,31 +44,102 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public abstract class BufferFlushingTask<In, Out> implements Runnable {
 
+	// How many messages are taken out of the buffer at a time while filling a request
+	private static final int DRAIN_STEP = 256;
+	// How many messages of other partitions may be set aside while a request is filled; the rest
+	// stays in the buffer, where it can still be evicted or spilled
+	private static final int MAX_PENDING = 4 * DRAIN_STEP;
+
 	private long timeOfLastFlush = System.currentTimeMillis();
 	private BufferWithEviction<In> messageQueue;
+	// Drained, but did not fit the previous request of their partition; oldest partition first
+	private Map<Object, Deque<In>> pending = new LinkedHashMap<Object, Deque<In>>();
+	private int pendingCount = 0;
+	private List<In> drained = new ArrayList<In>();
 
 	private boolean needsFlushing() {
 		long currentTime = System.currentTimeMillis();
 		long dateOfNextFlush = timeOfLastFlush + getMaxFlushInterval();
 
-		return (messageQueue.size() >= getMessagesPerRequest()) ||
+		return (pendingCount + messageQueue.size() >= getMessagesPerRequest()) ||
+				(getMaxBytesPerRequest() > 0 && messageQueue.cost() >= getMaxBytesPerRequest()) ||
 				(currentTime >= dateOfNextFlush);
 	}
 
+	// Send what is in the buffer now as requests of bounded size, back-to-back.
 	private void flushAndSend() {
-		List<In> messages = new ArrayList<In>(messageQueue.size());
-		messageQueue.drainTo(messages);
+		int remaining = pendingCount + messageQueue.size();
+		while (remaining > 0 && canSend()) {
+			List<In> messages = nextRequest();
+			if (messages.isEmpty()) {
+				break;
+			}
+			remaining -= messages.size();
 
-		if (messages.size() > 0) {
 			log.debug(String.format("%s - Flushing and sending out %d messages (%d messages left)",
 					new java.util.Date(),
 					messages.size(),
-					messageQueue.size()));
+					pendingCount + messageQueue.size()));
 			Out body = aggregate(messages);
 			sendOut(body, getName());
 		}
 	}
 
+	// Take messages of the oldest partition until either limit is reached; a single message over
+	// the byte limit goes alone.
+	private List<In> nextRequest() {
+		long maxMessages = getMaxMessagesPerRequest() > 0 ? getMaxMessagesPerRequest() : Long.MAX_VALUE;
+		long maxBytes = getMaxBytesPerRequest() > 0 ? getMaxBytesPerRequest() : Long.MAX_VALUE;
+
+		List<In> messages = new ArrayList<In>();
+		if (pending.isEmpty() && drain((int) Math.min(DRAIN_STEP, maxMessages)) == 0) {
+			return messages;
+		}
+		Object partition = pending.keySet().iterator().next();
+		Deque<In> queue = pending.get(partition);
+
+		long bytes = 0;
+		while (messages.size() < maxMessages && bytes < maxBytes) {
+			if (queue.isEmpty()) {
+				int step = (int) Math.min(DRAIN_STEP, maxMessages - messages.size());
+				if (pendingCount >= MAX_PENDING || drain(step) == 0) {
+					break;
+				}
+				continue;
+			}
+
+			long size = sizeOf(queue.peekFirst());
+			if (!messages.isEmpty() && bytes + size > maxBytes) {
+				break;
+			}
+			messages.add(queue.pollFirst());
+			pendingCount--;
+			bytes += size;
+		}
+
+		if (queue.isEmpty()) {
+			pending.remove(partition);
+		}
+		return messages;
+	}
+
+	// Move up to max messages from the buffer to the pending ones of their partition.
+	private int drain(int max) {
+		int count = messageQueue.drainTo(drained, max);
+		for (In message : drained) {
+			Object partition = partitionOf(message);
+			Deque<In> queue = pending.get(partition);
+			if (queue == null) {
+				queue = new ArrayDeque<In>();
+				pending.put(partition, queue);
+			}
+			queue.add(message);
+		}
+		drained.clear();
+		pendingCount += count;
+		return count;
+	}
+
 
     /* Subclasses should define from here */
 
@@ -74,6 +149,47 @@ public abstract class BufferFlushingTask<In, Out> implements Runnable {
 
 	abstract protected String getName();
 
+	// Upper bounds for a single request; 0 means unlimited
+	protected long getMaxMessagesPerRequest() {
+		return 0;
+	}
+
+	protected long getMaxBytesPerRequest() {
+		return 0;
+	}
+
+	// Number of bytes a message adds to a request, counted against getMaxBytesPerRequest()
+	protected long sizeOf(In message) {
+		return 0;
+	}
+
+	// Messages only go in the same request as others of an equal partition; null for all by default
+	protected Object partitionOf(In message) {
+		return null;
+	}
+
+	// Whether requests may go out now; if not, flushing stops and the rest stays buffered
+	protected boolean canSend() {
+		return true;
+	}
+
+	// Give back the messages of a request which was not attempted, to go with a later flush
+	protected void requeue(List<In> messages) {
+		for (In message : messages) {
+			requeue(message);
+		}
+	}
+
+	// Called with every message the buffer has no room for on its way back, to give up on it
+	protected void discard(In message) {
+	}
+
+	private void requeue(In message) {
+		if (!messageQueue.add(message)) {
+			discard(message);
+		}
+	}
+
 	protected BufferFlushingTask(BufferWithEviction<In> messageQueue) {
 		this.messageQueue = messageQueue;
 	}
@@ -88,9 +204,29 @@ public abstract class BufferFlushingTask<In, Out> implements Runnable {
 
     /* Public interface */
 
+	// How long until the flush interval elapses, so a caller knows how long it may wait.
+	public long millisUntilNextFlush() {
+		return Math.max(0, timeOfLastFlush + getMaxFlushInterval() - System.currentTimeMillis());
+	}
+
+	/**
+	 * Put the messages drained but not sent yet back into the buffer, e.g. when this task is
+	 * stopped. Must be called from the thread running the task, or once it has stopped.
+	 */
+	public void requeuePending() {
+		for (Deque<In> queue : pending.values()) {
+			for (In message : queue) {
+				requeue(message);
+			}
+		}
+		pending.clear();
+		pendingCount = 0;
+	}
+
 	@Override
 	public void run() {
 		if (needsFlushing()) {
+			timeOfLastFlush = System.currentTimeMillis();
 			try {
 				flushAndSend();
 			} catch (Exception e) {
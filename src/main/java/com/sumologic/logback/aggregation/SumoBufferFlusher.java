@@ -25,31 +25,47 @@
  */
 package com.sumologic.logback.aggregation;
 
+import com.sumologic.logback.http.RetryQueue;
 import com.sumologic.logback.http.SumoBufferFlushingTask;
 import com.sumologic.logback.http.SumoHttpSender;
+import com.sumologic.logback.message.SumoMessage;
+import com.sumologic.logback.message.WriteAheadLog;
 import com.sumologic.logback.queue.BufferWithEviction;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * @author: Jose Muniz (jose@sumologic.com)
+ * Runs the flushing task on a dedicated thread which parks until the buffer signals that a
+ * request's worth of messages is waiting, or until the maximum flush interval elapses. It does
+ * not poll, so an idle appender costs next to nothing and a full batch goes out right away.
+ * <p>
+ * With a retry queue, failed batches are retried from the same loop when they are due, and the
+ * thread never sleeps on a failure. With a sender pool as well, several batches are in flight at
+ * once while this thread keeps draining.
  */
 public class SumoBufferFlusher {
     private SumoBufferFlushingTask flushingTask;
-    private ScheduledFuture future;
-    private ScheduledExecutorService executor;
-    private long flushingAccuracy;
+    private BufferWithEviction<SumoMessage> buffer;
+    private long messagesPerRequest;
+    private long maxBytesPerRequest;
+    private ExecutorService executor;
+
+    private volatile boolean running;
+    private volatile Thread flusherThread;
+    private final AtomicBoolean signalled = new AtomicBoolean(false);
 
 
     public SumoBufferFlusher(
-            long flushingAccuracy,
             long messagesPerRequest,
             long maxFlushInterval,
             String sourceName,
             SumoHttpSender sender,
-            BufferWithEviction<String> buffer) {
+            BufferWithEviction<SumoMessage> buffer) {
 
-        this.flushingAccuracy = flushingAccuracy;
+        this.buffer = buffer;
+        this.messagesPerRequest = messagesPerRequest;
 
         flushingTask = new SumoBufferFlushingTask(buffer);
 
@@ -59,11 +75,54 @@ public class SumoBufferFlusher {
         flushingTask.setSender(sender);
     }
 
+    /**
+     * Format deferred messages of a batch on <tt>pool</tt>, split in up to <tt>parallelism</tt> slices.
+     * Without a pool they are formatted on the flusher thread.
+     */
+    public void setFormatterPool(ExecutorService pool, int parallelism) {
+        flushingTask.setFormatterPool(pool, parallelism);
+    }
+
+    /**
+     * Split what is flushed at once into requests of at most <tt>maxMessages</tt> messages and
+     * <tt>maxBytes</tt> bytes; 0 means unlimited.
+     */
+    public void setRequestLimits(long maxMessages, long maxBytes) {
+        this.maxBytesPerRequest = maxBytes;
+        flushingTask.setMaxMessagesPerRequest(maxMessages);
+        flushingTask.setMaxBytesPerRequest(maxBytes);
+    }
+
+    /**
+     * Put batches which failed to send on <tt>retryQueue</tt> instead of retrying them in place,
+     * so the flusher keeps draining the buffer meanwhile.
+     */
+    public void setRetryQueue(RetryQueue retryQueue) {
+        flushingTask.setRetryQueue(retryQueue);
+    }
+
+    /**
+     * Send up to <tt>maxInFlight</tt> batches at once on <tt>pool</tt>, optionally keeping the
+     * batches of each source name in order, as long as none has to be retried. Without a pool
+     * they are sent on the flusher thread.
+     * Requires a retry queue.
+     */
+    public void setSenderPool(ExecutorService pool, int maxInFlight, boolean preserveOrder) {
+        flushingTask.setSenderPool(pool, maxInFlight, preserveOrder);
+    }
+
+    /**
+     * Acknowledge the messages to <tt>writeAheadLog</tt> once their batch is sent or dropped.
+     */
+    public void setWriteAheadLog(WriteAheadLog writeAheadLog) {
+        flushingTask.setWriteAheadLog(writeAheadLog);
+    }
+
     public void start() {
         /* Start flushing! */
 
         executor =
-            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
                 @Override
                 public Thread newThread(Runnable r) {
                     Thread thread = new Thread(r);
@@ -73,21 +132,61 @@ public class SumoBufferFlusher {
                 }
             });
 
+        buffer.setThresholdListener((int) Math.min(Integer.MAX_VALUE, messagesPerRequest), maxBytesPerRequest,
+                new BufferWithEviction.ThresholdListener() {
+                    @Override
+                    public void thresholdReached() {
+                        // Only the first producer past the threshold wakes the flusher up.
+                        if (signalled.compareAndSet(false, true)) {
+                            LockSupport.unpark(flusherThread);
+                        }
+                    }
+                });
+
+        flushingTask.setWakeup(new Runnable() {
+            @Override
+            public void run() {
+                LockSupport.unpark(flusherThread);
+            }
+        });
+
+        running = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flusherThread = Thread.currentThread();
+                while (running && !Thread.currentThread().isInterrupted()) {
+                    // Throttled: leave everything in the buffer until the pause is over. The signal
+                    // is not reset, so producers do not keep waking this thread up meanwhile.
+                    long pause = flushingTask.millisUntilSenderAvailable();
+                    if (pause > 0) {
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(pause));
+                        continue;
+                    }
+
+                    signalled.set(false);
+                    flushingTask.retryDue();
+                    flushingTask.run();
+
+                    // A signal raised since the reset leaves a permit, so parking returns at once.
+                    long wait = Math.min(flushingTask.millisUntilNextFlush(), flushingTask.millisUntilNextRetry());
+                    if (!signalled.get()) {
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(wait, 1)));
+                    }
+                }
 
-        future =
-            executor.
-                scheduleAtFixedRate(flushingTask, 0, flushingAccuracy, TimeUnit.MILLISECONDS);
-
+                // Stopped: what was drained but not sent goes back for the next flusher
+                flushingTask.requeuePending();
+            }
+        });
     }
 
 
     public void stop() {
-        // Keep the current task running until it's done sending
-        if (future != null) {
-            future.cancel(false);
-            future = null;
-        }
+        running = false;
+        buffer.setThresholdListener(0, 0, null);
 
+        // Interrupts the flusher, whether parked or sending
         if (executor != null) {
             executor.shutdownNow();
         }
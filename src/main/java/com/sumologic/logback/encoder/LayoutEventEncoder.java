@@ -0,0 +1,75 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.encoder;
+
+import com.sumologic.logback.message.ChunkedOutputStream;
+
+import ch.qos.logback.core.Layout;
+import ch.qos.logback.core.spi.LifeCycle;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link EventEncoder} for any logback {@link Layout}. The laid out <tt>String</tt> is encoded
+ * directly into the chunks, without the intermediate copies of the plain layout mode.
+ */
+@Slf4j
+public class LayoutEventEncoder<E> implements EventEncoder<E>, LifeCycle {
+
+    private Layout<E> layout;
+    private boolean started;
+
+    public void setLayout(Layout<E> layout) {
+        this.layout = layout;
+    }
+
+    public Layout<E> getLayout() {
+        return layout;
+    }
+
+    @Override
+    public void encode(E event, ChunkedOutputStream out) {
+        out.writeUtf8(layout.doLayout(event));
+    }
+
+    @Override
+    public void start() {
+        if (layout == null) {
+            log.error("No layout set for the encoder");
+            return;
+        }
+        started = true;
+    }
+
+    @Override
+    public void stop() {
+        started = false;
+    }
+
+    @Override
+    public boolean isStarted() {
+        return started;
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.encoder;
+
+import com.sumologic.logback.message.ByteChunkPool;
+import com.sumologic.logback.message.ChunkedOutputStream;
+import com.sumologic.logback.message.MessageFormatter;
+import com.sumologic.logback.message.StringMessage;
+import com.sumologic.logback.message.SumoMessage;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Layout;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Formats events with the appender's encoder into pooled chunks when one is configured, or with
+ * its layout into a <tt>String</tt> otherwise. Thread-safe; every thread gets its own chunk stream.
+ */
+@Slf4j
+public class LoggingEventFormatter implements MessageFormatter<ILoggingEvent> {
+
+    private final Layout<ILoggingEvent> layout;
+    private final EventEncoder<ILoggingEvent> encoder;
+    private final ByteChunkPool chunkPool;
+    private final ThreadLocal<ChunkedOutputStream> chunkedStreams = new ThreadLocal<ChunkedOutputStream>();
+
+    public LoggingEventFormatter(Layout<ILoggingEvent> layout,
+                                 EventEncoder<ILoggingEvent> encoder,
+                                 ByteChunkPool chunkPool) {
+        if (encoder != null && chunkPool == null) {
+            throw new IllegalArgumentException("An encoder needs a chunk pool");
+        }
+
+        this.layout = layout;
+        this.encoder = encoder;
+        this.chunkPool = chunkPool;
+    }
+
+    @Override
+    public SumoMessage format(ILoggingEvent event) {
+        if (encoder == null) {
+            return new StringMessage(layout.doLayout(event));
+        }
+
+        ChunkedOutputStream out = chunkedStreams.get();
+        if (out == null) {
+            out = new ChunkedOutputStream(chunkPool);
+            chunkedStreams.set(out);
+        }
+
+        try {
+            encoder.encode(event, out);
+            return out.toMessage();
+        } catch (Exception e) {
+            out.discard();
+            log.error("Unable to encode log entry. ", e);
+            return null;
+        }
+    }
+}
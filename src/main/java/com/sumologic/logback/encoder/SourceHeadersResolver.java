@@ -0,0 +1,160 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.encoder;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import com.sumologic.logback.message.SourceHeaders;
+
+import org.slf4j.Marker;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Works out the <tt>X-Sumo-*</tt> headers of an event, so that one appender can send to several
+ * source names, categories or hosts.
+ * <p>
+ * Each configured key is looked up in the MDC of the event, then among its markers, where a
+ * marker named <tt>key=value</tt> gives the value. Headers whose key has no value fall back to
+ * the defaults. The keys of the fields are separated by commas, and those with a value are sent
+ * as <tt>key=value</tt> pairs.
+ * <p>
+ * Control characters in values, which could end the header and start another, are replaced by
+ * <tt>_</tt>, and so are <tt>,</tt> and <tt>=</tt> in the values of fields.
+ */
+public class SourceHeadersResolver {
+
+    private final SourceHeaders defaults;
+    private final String nameKey;
+    private final String categoryKey;
+    private final String hostKey;
+    private final String[] fieldKeys;
+
+    public SourceHeadersResolver(SourceHeaders defaults, String nameKey, String categoryKey, String hostKey,
+                                 String fieldKeys) {
+        this.defaults = defaults;
+        this.nameKey = blankToNull(nameKey);
+        this.categoryKey = blankToNull(categoryKey);
+        this.hostKey = blankToNull(hostKey);
+        this.fieldKeys = fieldKeys == null || fieldKeys.trim().isEmpty()
+                ? new String[0] : fieldKeys.trim().split("\\s*,\\s*");
+    }
+
+    /**
+     * Return whether events may get other headers than the defaults.
+     */
+    public boolean isPartitioned() {
+        return nameKey != null || categoryKey != null || hostKey != null || fieldKeys.length > 0;
+    }
+
+    /**
+     * Return the headers of <tt>event</tt>; the defaults themselves when it has no values of its own.
+     */
+    public SourceHeaders resolve(ILoggingEvent event) {
+        if (!isPartitioned()) {
+            return defaults;
+        }
+
+        String name = sanitize(value(event, nameKey), false);
+        String category = sanitize(value(event, categoryKey), false);
+        String host = sanitize(value(event, hostKey), false);
+        String fields = fields(event);
+        if (name == null && category == null && host == null && fields == null) {
+            return defaults;
+        }
+        return new SourceHeaders(
+                name != null ? name : defaults.getName(),
+                category != null ? category : defaults.getCategory(),
+                host != null ? host : defaults.getHost(),
+                fields != null ? fields : defaults.getFields());
+    }
+
+    private String fields(ILoggingEvent event) {
+        StringBuilder fields = null;
+        for (String key : fieldKeys) {
+            String value = value(event, key);
+            if (value == null) {
+                continue;
+            }
+            if (fields == null) {
+                fields = new StringBuilder();
+            } else {
+                fields.append(',');
+            }
+            fields.append(key).append('=').append(sanitize(value, true));
+        }
+        return fields != null ? fields.toString() : null;
+    }
+
+    private static String value(ILoggingEvent event, String key) {
+        if (key == null) {
+            return null;
+        }
+
+        Map<String, String> mdc = event.getMDCPropertyMap();
+        String value = mdc != null ? mdc.get(key) : null;
+        if (value == null && event.getMarker() != null) {
+            value = markerValue(event.getMarker(), key + "=");
+        }
+        return value;
+    }
+
+    private static String markerValue(Marker marker, String prefix) {
+        if (marker.getName().startsWith(prefix)) {
+            return marker.getName().substring(prefix.length());
+        }
+        for (Iterator<?> references = marker.iterator(); references.hasNext(); ) {
+            String value = markerValue((Marker) references.next(), prefix);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static String sanitize(String value, boolean field) {
+        if (value == null) {
+            return null;
+        }
+        StringBuilder sanitized = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            boolean unsafe = c < ' ' || c == '\u007f' || (field && (c == ',' || c == '='));
+            if (unsafe && sanitized == null) {
+                sanitized = new StringBuilder(value.length()).append(value, 0, i);
+            }
+            if (sanitized != null) {
+                sanitized.append(unsafe ? '_' : c);
+            }
+        }
+        return sanitized != null ? sanitized.toString() : value;
+    }
+
+    private static String blankToNull(String s) {
+        return s == null || s.trim().isEmpty() ? null : s.trim();
+    }
+}
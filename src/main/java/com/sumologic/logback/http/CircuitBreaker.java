@@ -0,0 +1,138 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.http;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pauses all sends to an endpoint which is throttling us (429 or 503).
+ * <p>
+ * A throttled response opens the breaker for as long as its <tt>Retry-After</tt> asks, however
+ * long that is, or else for
+ * a backoff doubling from <tt>initialBackoff</tt> up to <tt>maxBackoff</tt> with every throttled
+ * response in a row; a tenth of it is added at random so that many senders do not come back at
+ * the same instant. Once the pause is over the breaker is half-open: a single request is let
+ * through as a probe, and its outcome closes the breaker or opens it again.
+ */
+@Slf4j
+public class CircuitBreaker {
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    // How soon to look again while another thread's probe is in flight.
+    private static final long PROBE_WAIT = 50;
+
+    private long initialBackoff;
+    private long maxBackoff;
+
+    private int state = CLOSED;
+    private long openUntil = 0;
+    private long backoff = 0;
+
+    public CircuitBreaker(long initialBackoff, long maxBackoff) {
+        configure(initialBackoff, maxBackoff);
+    }
+
+    public synchronized void configure(long initialBackoff, long maxBackoff) {
+        this.initialBackoff = Math.max(1, initialBackoff);
+        this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+    }
+
+    /**
+     * Ask for permission to send a request at <tt>now</tt>. When the pause has just expired, only
+     * the first caller is let through, as the probe.
+     * @return true if the request may be sent
+     */
+    public synchronized boolean tryAcquire(long now) {
+        if (state == CLOSED) {
+            return true;
+        }
+        if (state == OPEN && now >= openUntil) {
+            state = HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return how long until a request may be sent, 0 if it may be sent now.
+     */
+    public synchronized long millisUntilAvailable(long now) {
+        if (state == CLOSED) {
+            return 0;
+        }
+        if (state == OPEN) {
+            return Math.max(0, openUntil - now);
+        }
+        return PROBE_WAIT;
+    }
+
+    public synchronized boolean isClosed() {
+        return state == CLOSED;
+    }
+
+    /**
+     * The endpoint answered with anything but a throttling status.
+     */
+    public synchronized void succeeded() {
+        if (state != CLOSED) {
+            log.info("Sumo Logic is accepting requests again");
+        }
+        state = CLOSED;
+        backoff = 0;
+    }
+
+    /**
+     * The endpoint answered 429 or 503.
+     * @param retryAfter the pause asked for by <tt>Retry-After</tt> in ms, or -1 if there was none
+     */
+    public synchronized void throttled(long retryAfter, long now) {
+        backoff = backoff == 0 ? initialBackoff : Math.min(maxBackoff, backoff * 2);
+        long pause = retryAfter >= 0 ? retryAfter : backoff;
+        open(pause + ThreadLocalRandom.current().nextLong(pause / 10 + 1), now);
+    }
+
+    /**
+     * The request failed without an answer. Only matters to the probe.
+     */
+    public synchronized void failed(long now) {
+        if (state == HALF_OPEN) {
+            open(Math.max(backoff, initialBackoff), now);
+        }
+    }
+
+    private void open(long pause, long now) {
+        if (state != OPEN) {
+            log.warn("Pausing requests to Sumo Logic for " + pause + " ms");
+        }
+        state = OPEN;
+        openUntil = now + pause;
+    }
+}
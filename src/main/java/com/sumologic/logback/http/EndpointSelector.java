@@ -0,0 +1,174 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Picks the collector endpoint of each request among several, and keeps track of their health.
+ * <p>
+ * Requests go to the healthy endpoints in turn, or with {@link #LEAST_LATENCY} to the one which
+ * has been answering fastest lately. An endpoint failing <tt>failureThreshold</tt> times in a row
+ * is left alone for <tt>quarantine</tt> ms, after which it gets requests again; if every endpoint
+ * is quarantined, the one coming back first is used anyway.
+ */
+@Slf4j
+public class EndpointSelector {
+
+    public static final String ROUND_ROBIN = "round-robin";
+    public static final String LEAST_LATENCY = "least-latency";
+
+    // Weight of the latest request in the latency average
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    public static class Endpoint {
+        private final String url;
+        private int failures;
+        private long quarantinedUntil;
+        private double latency;     // Moving average in ms; 0 until a request succeeded
+
+        Endpoint(String url) {
+            this.url = url;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public synchronized double getLatency() {
+            return latency;
+        }
+    }
+
+    private final List<Endpoint> endpoints;
+    private final boolean leastLatency;
+    private int failureThreshold = 3;
+    private long quarantine = 30000;
+    private int next = 0;
+
+    public EndpointSelector(List<String> urls, String strategy) {
+        List<Endpoint> endpoints = new ArrayList<Endpoint>(urls.size());
+        for (String url : urls) {
+            endpoints.add(new Endpoint(url));
+        }
+        this.endpoints = Collections.unmodifiableList(endpoints);
+
+        if (strategy != null && !ROUND_ROBIN.equalsIgnoreCase(strategy) && !LEAST_LATENCY.equalsIgnoreCase(strategy)) {
+            throw new IllegalArgumentException("Unsupported endpoint selection: " + strategy);
+        }
+        this.leastLatency = LEAST_LATENCY.equalsIgnoreCase(strategy);
+    }
+
+    /**
+     * Split a comma-separated list of URLs, ignoring blanks.
+     */
+    public static List<String> parseUrls(String urls) {
+        List<String> result = new ArrayList<String>();
+        if (urls != null) {
+            for (String url : urls.split(",")) {
+                if (!url.trim().isEmpty()) {
+                    result.add(url.trim());
+                }
+            }
+        }
+        return result;
+    }
+
+    public synchronized void configure(int failureThreshold, long quarantine) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.quarantine = quarantine;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Return the endpoint for a request made at <tt>now</tt>, or null if there is none.
+     */
+    public synchronized Endpoint select(long now) {
+        Endpoint selected = null;
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get((next + i) % endpoints.size());
+            if (endpoint.quarantinedUntil > now) {
+                continue;
+            }
+            if (!leastLatency) {
+                selected = endpoint;
+                break;
+            }
+            if (selected == null || endpoint.getLatency() < selected.getLatency()) {
+                selected = endpoint;
+            }
+        }
+
+        if (selected == null) {
+            // All quarantined: better the one back soonest than none
+            for (Endpoint endpoint : endpoints) {
+                if (selected == null || endpoint.quarantinedUntil < selected.quarantinedUntil) {
+                    selected = endpoint;
+                }
+            }
+        }
+        if (!endpoints.isEmpty()) {
+            next = (next + 1) % endpoints.size();
+        }
+        return selected;
+    }
+
+    /**
+     * The endpoint answered, after <tt>latency</tt> ms.
+     */
+    public synchronized void succeeded(Endpoint endpoint, long latency) {
+        if (endpoint.quarantinedUntil > 0) {
+            log.info("Collector endpoint " + endpoint.url + " is back");
+        }
+        endpoint.failures = 0;
+        endpoint.quarantinedUntil = 0;
+        synchronized (endpoint) {
+            endpoint.latency = endpoint.latency == 0 ? latency
+                    : endpoint.latency + LATENCY_WEIGHT * (latency - endpoint.latency);
+        }
+    }
+
+    /**
+     * The endpoint did not answer, or said it is unavailable.
+     */
+    public synchronized void failed(Endpoint endpoint, long now) {
+        endpoint.failures++;
+        if (endpoint.failures >= failureThreshold && endpoints.size() > 1) {
+            if (endpoint.quarantinedUntil <= now) {
+                log.warn("Collector endpoint " + endpoint.url + " failed " + endpoint.failures
+                        + " times in a row, failing over for " + quarantine + " ms");
+            }
+            endpoint.quarantinedUntil = now + quarantine;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Settings of the pooled connections to Sumo Logic, and counts of how many requests went out on
+ * a connection which was already open, i.e. without paying for a new TCP and TLS handshake.
+ * <p>
+ * Connections are kept open for <tt>keepAlive</tt> ms at most, less if the server says so, and
+ * closed after <tt>idleTimeout</tt> ms unused. With the blocking client, one idle for more than
+ * <tt>validateAfterInactivity</tt> ms is checked for staleness before it is reused; the
+ * non-blocking one sees a connection closed by the server as soon as it happens.
+ */
+@Slf4j
+public class HttpConnectionPool {
+
+    private int connectionTimeout = 1000;
+    private int socketTimeout = 60000;
+    private int maxConnections = 8;              // Per route, i.e. per endpoint
+    private int routeCount = 1;
+    private long keepAlive = 60000;              // 0 keeps connections for as long as the server allows
+    private long idleTimeout = 30000;            // 0 never closes idle connections
+    private int validateAfterInactivity = 2000;  // 0 never checks connections before reuse
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+    private final AtomicLong openedCount = new AtomicLong();
+
+    private volatile PoolingHttpClientConnectionManager connectionManager;
+
+    public void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return Math.max(1, maxConnections);
+    }
+
+    public void setRouteCount(int routeCount) {
+        this.routeCount = routeCount;
+    }
+
+    public int getMaxTotalConnections() {
+        return getMaxConnections() * Math.max(1, routeCount);
+    }
+
+    public void setKeepAlive(long keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void setValidateAfterInactivity(int validateAfterInactivity) {
+        this.validateAfterInactivity = validateAfterInactivity;
+    }
+
+    /**
+     * Build a blocking client on a new pool of connections. Closing the client closes the pool.
+     */
+    public CloseableHttpClient createClient() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                new HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection>() {
+                    @Override
+                    public ManagedHttpClientConnection create(HttpRoute route, ConnectionConfig config) {
+                        openedCount.incrementAndGet();
+                        return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+                    }
+                });
+        connectionManager.setMaxTotal(getMaxTotalConnections());
+        connectionManager.setDefaultMaxPerRoute(getMaxConnections());
+        connectionManager.setValidateAfterInactivity(validateAfterInactivity > 0 ? validateAfterInactivity : -1);
+        this.connectionManager = connectionManager;
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectionTimeout)
+                .setSocketTimeout(socketTimeout)
+                .build();
+
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy())
+                .setRequestExecutor(new HttpRequestExecutor() {
+                    @Override
+                    public HttpResponse execute(HttpRequest request, HttpClientConnection connection,
+                                                HttpContext context) throws IOException, HttpException {
+                        // Still leased here, unlike once the response is back
+                        count(connection);
+                        return super.execute(request, connection, context);
+                    }
+                });
+        if (idleTimeout > 0) {
+            builder.evictExpiredConnections();
+            builder.evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Close the connections of the non-blocking <tt>connectionManager</tt> which expired or were
+     * idle for <tt>idleTimeout</tt> ms, on a background thread, as the blocking client does.
+     * @return the thread, to be interrupted once the client is closed; null if there is none
+     */
+    public Thread evictIdleConnections(final PoolingNHttpClientConnectionManager connectionManager) {
+        final long idleTimeout = this.idleTimeout;
+        if (idleTimeout <= 0) {
+            return null;
+        }
+
+        Thread evictor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Thread.sleep(idleTimeout);
+                        connectionManager.closeExpiredConnections();
+                        connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    // Closed
+                }
+            }
+        });
+        evictor.setName("SumoIdleConnectionEvictor");
+        evictor.setDaemon(true);
+        evictor.start();
+        return evictor;
+    }
+
+    /**
+     * Resolve the host of <tt>url</tt> and open up to <tt>count</tt> connections to it in the pool
+     * of the last client built, on a background thread, so that the first requests find them
+     * ready. Failures are only logged; the requests will connect as usual.
+     */
+    public void warmUp(final String url, int count) {
+        final PoolingHttpClientConnectionManager connectionManager = this.connectionManager;
+        final int connections = Math.min(count, getMaxConnections());
+        if (connectionManager == null || url == null || connections <= 0) {
+            return;
+        }
+
+        Thread warmer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    warmUp(connectionManager, url, connections);
+                } catch (Exception e) {
+                    log.debug("Could not open connections ahead to " + url, e);
+                }
+            }
+        });
+        warmer.setName("SumoConnectionWarmer");
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    private void warmUp(PoolingHttpClientConnectionManager connectionManager, String url, int count)
+            throws Exception {
+        HttpHost host = URIUtils.extractHost(new URI(url));
+        if (host == null) {
+            return;
+        }
+        InetAddress.getAllByName(host.getHostName());
+
+        // Same route as the requests will take, so that they find these connections
+        host = new HttpHost(host.getHostName(), DefaultSchemePortResolver.INSTANCE.resolve(host), host.getSchemeName());
+        HttpRoute route = new HttpRoute(host, null, "https".equalsIgnoreCase(host.getSchemeName()));
+
+        // Lease them all before releasing any, or the pool hands out the same one again
+        List<HttpClientConnection> leased = new ArrayList<HttpClientConnection>();
+        try {
+            for (int i = 0; i < count; i++) {
+                HttpClientConnection connection = connectionManager.requestConnection(route, null)
+                        .get(connectionTimeout, TimeUnit.MILLISECONDS);
+                leased.add(connection);
+                if (!connection.isOpen()) {
+                    HttpClientContext context = HttpClientContext.create();
+                    connectionManager.connect(connection, route, connectionTimeout, context);
+                    connectionManager.routeComplete(connection, route, context);
+                }
+            }
+        } finally {
+            for (HttpClientConnection connection : leased) {
+                connectionManager.releaseConnection(connection, null, keepAlive > 0 ? keepAlive : -1,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        log.debug("Opened " + leased.size() + " connections ahead to " + host);
+    }
+
+    /**
+     * Keep connections for the duration asked by the server, capped at <tt>keepAlive</tt>.
+     */
+    ConnectionKeepAliveStrategy keepAliveStrategy() {
+        return new ConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                if (keepAlive <= 0) {
+                    return duration;
+                }
+                return duration > 0 ? Math.min(duration, keepAlive) : keepAlive;
+            }
+        };
+    }
+
+    /**
+     * Count every response of the non-blocking client, and those received on a connection which
+     * had served a request before.
+     */
+    HttpResponseInterceptor reuseCounter() {
+        return new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+                HttpConnection connection = HttpCoreContext.adapt(context).getConnection();
+                try {
+                    if (connection != null && connection.getMetrics().getRequestCount() > 1) {
+                        reusedCount.incrementAndGet();
+                    }
+                } catch (IllegalStateException e) {
+                    // Already released to the pool
+                }
+                requestCount.incrementAndGet();
+            }
+        };
+    }
+
+    private void count(HttpConnection connection) {
+        requestCount.incrementAndGet();
+        if (connection.getMetrics().getRequestCount() > 0) {
+            reusedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Return how many requests were sent, over every client built.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Return how many of those requests were sent on a connection already used before.
+     */
+    public long getReusedConnectionCount() {
+        return reusedCount.get();
+    }
+
+    /**
+     * Return how many connections the blocking clients opened, each with its own handshake.
+     */
+    public long getOpenedConnectionCount() {
+        return openedCount.get();
+    }
+}
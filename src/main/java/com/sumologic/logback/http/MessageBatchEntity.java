@@ -0,0 +1,166 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import com.sumologic.logback.message.SumoMessage;
+import com.sumologic.logback.message.WriteAheadLog;
+
+/**
+ * Request body made of a batch of buffered messages. Each message writes its own bytes to the
+ * connection, so the batch is never materialized as one big <tt>String</tt> or array.
+ * <p>
+ * With non-blocking I/O the batch produces its content itself, one message at a time, as the
+ * connection can take it; otherwise the client would read it through {@link #getContent()},
+ * which copies the whole batch.
+ */
+public class MessageBatchEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+    private final List<SumoMessage> messages;
+    private final long contentLength;
+    private WriteAheadLog writeAheadLog;
+
+    // How far produceContent() got; close() starts over for the next attempt
+    private int next;
+    private ByteBuffer pending;
+    private MessageBuffer messageBuffer;
+
+    public MessageBatchEntity(List<SumoMessage> messages) {
+        this.messages = messages;
+
+        long length = 0;
+        for (SumoMessage message : messages) {
+            length += message.length();
+        }
+        this.contentLength = length;
+
+        setContentType(ContentType.APPLICATION_JSON.toString());
+    }
+
+    public List<SumoMessage> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Acknowledge the messages to <tt>writeAheadLog</tt> once released.
+     */
+    public void setWriteAheadLog(WriteAheadLog writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+    }
+
+    /**
+     * Give the storage of every message in the batch back once it will not be sent again.
+     */
+    public void release() {
+        if (writeAheadLog != null) {
+            writeAheadLog.acknowledge(messages);
+        }
+        for (SumoMessage message : messages) {
+            message.release();
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) contentLength);
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        for (SumoMessage message : messages) {
+            message.writeTo(out);
+        }
+        out.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+        while (true) {
+            if (pending == null || !pending.hasRemaining()) {
+                if (next == messages.size()) {
+                    encoder.complete();
+                    return;
+                }
+                if (messageBuffer == null) {
+                    messageBuffer = new MessageBuffer();
+                }
+                messageBuffer.reset();
+                messages.get(next++).writeTo(messageBuffer);
+                pending = messageBuffer.toByteBuffer();
+            }
+            encoder.write(pending);
+            if (pending.hasRemaining()) {
+                // The connection is full; we are called again once it can take more
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        next = 0;
+        pending = null;
+        messageBuffer = null;
+    }
+
+    // Holds one message at a time, handed to the connection without copying it again.
+    private static final class MessageBuffer extends ByteArrayOutputStream {
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.http;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sumologic.logback.message.SourceHeaders;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Batches whose request failed with a retryable error, each waiting for its own next attempt.
+ * <p>
+ * The delay doubles after every failed attempt, from <tt>initialInterval</tt> up to
+ * <tt>maxInterval</tt>, and a random part of up to half of it is subtracted so that many senders
+ * failing together do not retry together. A batch is dropped once it has been attempted
+ * <tt>maxAttempts</tt> times or is older than <tt>maxAge</tt>; 0 disables either limit. The total
+ * size is bounded by <tt>capacity</tt> bytes, past which the oldest batches are dropped, whether
+ * they were just added or handed back after an attempt.
+ */
+@Slf4j
+public class RetryQueue {
+
+    public static class Entry {
+        private final MessageBatchEntity body;
+        private final SourceHeaders headers;
+        private final long firstAttempt;
+        private int attempts;
+        private long nextAttempt;
+
+        Entry(MessageBatchEntity body, SourceHeaders headers, long firstAttempt) {
+            this.body = body;
+            this.headers = headers;
+            this.firstAttempt = firstAttempt;
+        }
+
+        public MessageBatchEntity getBody() {
+            return body;
+        }
+
+        public SourceHeaders getHeaders() {
+            return headers;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();    // Oldest first
+    private long bytes = 0;
+
+    private long capacity;
+    private long initialInterval;
+    private long maxInterval;
+    private int maxAttempts;
+    private long maxAge;
+
+    public RetryQueue(long capacity, long initialInterval, long maxInterval, int maxAttempts, long maxAge) {
+        configure(capacity, initialInterval, maxInterval, maxAttempts, maxAge);
+    }
+
+    public synchronized void configure(long capacity, long initialInterval, long maxInterval,
+                                       int maxAttempts, long maxAge) {
+        if (initialInterval <= 0) {
+            throw new IllegalArgumentException("Initial interval must be at least 1");
+        }
+
+        this.capacity = capacity;
+        this.initialInterval = initialInterval;
+        this.maxInterval = Math.max(initialInterval, maxInterval);
+        this.maxAttempts = maxAttempts;
+        this.maxAge = maxAge;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Queue a batch whose first attempt just failed.
+     */
+    public synchronized void add(MessageBatchEntity body, SourceHeaders headers, long now) {
+        Entry entry = new Entry(body, headers, now);
+        if (!reschedule(entry, now)) {
+            return;
+        }
+
+        insert(entry);
+    }
+
+    /**
+     * Take out the oldest batch due for another attempt at <tt>now</tt>. It must be handed back
+     * with {@link #failed} unless it has been sent.
+     * @return the batch, or null if none is due
+     */
+    public synchronized Entry pollDue(long now) {
+        for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            if (entry.nextAttempt <= now) {
+                iterator.remove();
+                bytes -= entry.body.getContentLength();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Schedule the next attempt of a batch taken with {@link #pollDue}, or drop it if it is
+     * exhausted.
+     */
+    public synchronized void failed(Entry entry, long now) {
+        if (!reschedule(entry, now)) {
+            return;
+        }
+        insert(entry);
+    }
+
+    /**
+     * Hand back a batch taken with {@link #pollDue} which was not attempted after all, e.g. while
+     * the endpoint is throttling us. It keeps its attempts and is due again at once.
+     */
+    public synchronized void requeue(Entry entry) {
+        insert(entry);
+    }
+
+    private void insert(Entry entry) {
+        // Keep the oldest first; retried batches are usually older than the rest.
+        int index = 0;
+        while (index < entries.size() && entries.get(index).firstAttempt <= entry.firstAttempt) {
+            index++;
+        }
+        entries.add(index, entry);
+        bytes += entry.body.getContentLength();
+
+        // Batches handed back may no longer fit, others having been added while they were out.
+        int numDropped = 0;
+        while (entries.size() > 1 && bytes > capacity) {
+            drop(entries.get(0));
+            numDropped++;
+        }
+        if (numDropped > 0) {
+            log.warn("Dropped " + numDropped + " batches waiting to be retried");
+        }
+    }
+
+    /**
+     * Return how long until the next batch is due, or <tt>Long.MAX_VALUE</tt> if there is none.
+     */
+    public synchronized long millisUntilNextAttempt(long now) {
+        long next = Long.MAX_VALUE;
+        for (Entry entry : entries) {
+            next = Math.min(next, entry.nextAttempt);
+        }
+        return next == Long.MAX_VALUE ? next : Math.max(0, next - now);
+    }
+
+    private boolean reschedule(Entry entry, long now) {
+        entry.attempts++;
+        if ((maxAttempts > 0 && entry.attempts >= maxAttempts)
+                || (maxAge > 0 && now - entry.firstAttempt >= maxAge)) {
+            log.warn("Giving up on a batch of " + entry.body.getMessages().size()
+                    + " messages after " + entry.attempts + " attempts");
+            entry.body.release();
+            return false;
+        }
+
+        long delay = initialInterval;
+        for (int i = 1; i < entry.attempts && delay < maxInterval; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxInterval);
+        entry.nextAttempt = now + delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        return true;
+    }
+
+    private void drop(Entry entry) {
+        entries.remove(entry);
+        bytes -= entry.body.getContentLength();
+        entry.body.release();
+    }
+}
@@ -25,44 +25,120 @@
  */
 package com.sumologic.logback.http;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 import com.sumologic.logback.aggregation.BufferFlushingTask;
+import com.sumologic.logback.message.DeferredMessage;
+import com.sumologic.logback.message.SourceHeaders;
+import com.sumologic.logback.message.SumoMessage;
+import com.sumologic.logback.message.WriteAheadLog;
 import com.sumologic.logback.queue.BufferWithEviction;
 
+import org.apache.http.concurrent.FutureCallback;
+
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * @author: Jose Muniz (jose@sumologic.com)
  */
 @Slf4j
-public class SumoBufferFlushingTask extends BufferFlushingTask<String, String> {
+public class SumoBufferFlushingTask extends BufferFlushingTask<SumoMessage, MessageBatchEntity> {
 
 	private SumoHttpSender sender;
 	private long           maxFlushInterval;
 	private long           messagesPerRequest;
+	private long           maxMessagesPerRequest;
+	private long           maxBytesPerRequest;
 	private String         name;
+	private SourceHeaders  headers;     // Of messages which have none of their own
+	private ExecutorService formatterPool;
+	private RetryQueue     retryQueue;
+	private int            formatterParallelism;
+	private ExecutorService senderPool;
+	private Semaphore      inFlight = new Semaphore(1);
+	private boolean        preserveOrder;
+	private final ConcurrentHashMap<SourceHeaders, OrderedLane> lanes = new ConcurrentHashMap<SourceHeaders, OrderedLane>();
+	private final Queue<SplitBatch> splitBatches = new ConcurrentLinkedQueue<SplitBatch>();
+	private long           smallestRejected = Long.MAX_VALUE;   // Smallest request rejected with 413, uncompressed
+	private long           largestAccepted = 0;                 // Largest request accepted below that, uncompressed
+	private Runnable       wakeup;
+	private WriteAheadLog  writeAheadLog;
 
-	public SumoBufferFlushingTask(BufferWithEviction<String> queue) {
+	public SumoBufferFlushingTask(BufferWithEviction<SumoMessage> queue) {
 		super(queue);
 	}
 
 	public void setName(String name) {
 		this.name = name;
+		this.headers = new SourceHeaders(name, null, null, null);
 	}
 
 	public void setSender(SumoHttpSender sender) {
 		this.sender = sender;
 	}
 
+	public void setRetryQueue(RetryQueue retryQueue) {
+		this.retryQueue = retryQueue;
+	}
+
+	/**
+	 * Send batches on <tt>pool</tt>, or without waiting if the sender is asynchronous, at most
+	 * <tt>maxInFlight</tt> at a time while this task keeps draining; draining waits when that many
+	 * are in flight. With <tt>preserveOrder</tt>, batches with the same headers are sent one
+	 * after the other, in the order of their first attempt. That order only holds while nothing
+	 * fails: a failed batch waits on the retry queue while the batches after it go out.
+	 */
+	public void setSenderPool(ExecutorService pool, int maxInFlight, boolean preserveOrder) {
+		this.senderPool = pool;
+		this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+		this.preserveOrder = preserveOrder;
+	}
+
+	/**
+	 * Called when there is something for {@link #retryDue} to send right away.
+	 */
+	public void setWakeup(Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+
+	/**
+	 * Acknowledge the messages of every batch to <tt>writeAheadLog</tt> once sent or dropped.
+	 */
+	public void setWriteAheadLog(WriteAheadLog writeAheadLog) {
+		this.writeAheadLog = writeAheadLog;
+	}
+
 	public void setMessagesPerRequest(long messagesPerRequest) {
 		this.messagesPerRequest = messagesPerRequest;
 	}
 
+	public void setMaxMessagesPerRequest(long maxMessagesPerRequest) {
+		this.maxMessagesPerRequest = maxMessagesPerRequest;
+	}
+
+	public void setMaxBytesPerRequest(long maxBytesPerRequest) {
+		this.maxBytesPerRequest = maxBytesPerRequest;
+	}
+
 	public void setMaxFlushInterval(long maxFlushInterval) {
 		this.maxFlushInterval = maxFlushInterval;
 	}
 
+	public void setFormatterPool(ExecutorService formatterPool, int parallelism) {
+		this.formatterPool = formatterPool;
+		this.formatterParallelism = parallelism;
+	}
+
 	@Override
 	protected long getMaxFlushInterval() {
 		return maxFlushInterval;
@@ -79,21 +155,387 @@ public class SumoBufferFlushingTask extends BufferFlushingTask<String, String> {
 	}
 
 	@Override
-	protected String aggregate(List<String> messages) {
-		StringBuilder builder = new StringBuilder(messages.size() * 10);
-		for (String message : messages) {
-			builder.append(message);
+	protected long getMaxMessagesPerRequest() {
+		return maxMessagesPerRequest;
+	}
+
+	@Override
+	protected long getMaxBytesPerRequest() {
+		long learned = learnedMaxBytes();
+		if (learned == 0) {
+			return maxBytesPerRequest;
 		}
-		return builder.toString();
+		return maxBytesPerRequest > 0 ? Math.min(maxBytesPerRequest, learned) : learned;
 	}
 
 	@Override
-	protected void sendOut(String body, String name) {
-		if (sender.isInitialized()) {
-			sender.send(body, name);
-		} else {
+	protected long sizeOf(SumoMessage message) {
+		// Measuring a deferred message would format it here, one at a time; its estimate will do.
+		return message instanceof DeferredMessage ? message.cost() : message.length();
+	}
+
+	@Override
+	protected Object partitionOf(SumoMessage message) {
+		return headersOf(message);
+	}
+
+	private SourceHeaders headersOf(SumoMessage message) {
+		SourceHeaders headers = message.getHeaders();
+		return headers != null ? headers : this.headers;
+	}
+
+	@Override
+	protected MessageBatchEntity aggregate(List<SumoMessage> messages) {
+		// Deferred messages not formatted here are formatted by the entity on this thread.
+		if (formatterPool != null && formatterParallelism > 0 && messages.size() > 1) {
+			formatInParallel(messages);
+		}
+		return entity(messages);
+	}
+
+	@Override
+	protected void discard(SumoMessage message) {
+		if (writeAheadLog != null) {
+			writeAheadLog.acknowledge(Collections.singletonList(message));
+		}
+		message.release();
+	}
+
+	private MessageBatchEntity entity(List<SumoMessage> messages) {
+		MessageBatchEntity entity = new MessageBatchEntity(messages);
+		entity.setWriteAheadLog(writeAheadLog);
+		return entity;
+	}
+
+	private void formatInParallel(final List<SumoMessage> messages) {
+		int slices = Math.min(formatterParallelism, messages.size());
+		int sliceSize = (messages.size() + slices - 1) / slices;
+
+		List<Callable<Void>> work = new ArrayList<Callable<Void>>(slices);
+		for (int from = 0; from < messages.size(); from += sliceSize) {
+			final List<SumoMessage> slice = messages.subList(from, Math.min(from + sliceSize, messages.size()));
+			work.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (SumoMessage message : slice) {
+						if (message instanceof DeferredMessage) {
+							((DeferredMessage) message).format();
+						}
+					}
+					return null;
+				}
+			});
+		}
+
+		try {
+			formatterPool.invokeAll(work);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			log.warn("Unable to format messages in parallel", e);
+		}
+	}
+
+	@Override
+	protected void sendOut(MessageBatchEntity body, String name) {
+		// Every message of a batch has the same headers
+		SourceHeaders headers = headersOf(body.getMessages().get(0));
+		if (retryQueue == null) {
+			sendBlocking(body, headers);
+			return;
+		}
+
+		if (!sender.isInitialized()) {
 			log.error("HTTPSender is not initialized");
+			body.release();
+		} else {
+			dispatch(body, headers, null);
+		}
+	}
+
+	// Attempt a fresh batch (retry == null) or a retried one, on the sender pool or the non-blocking
+	// client if there is one.
+	private void dispatch(MessageBatchEntity body, SourceHeaders headers, RetryQueue.Entry retry) {
+		if (senderPool == null && !sender.isAsync()) {
+			completed(body, headers, retry, sender.trySend(body, headers));
+			return;
+		}
+
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failed(body, headers, retry);
+			return;
+		}
+
+		Send send = new Send(body, headers, retry);
+		if (preserveOrder) {
+			// A lane retired meanwhile is replaced by a new one
+			while (!lane(headers).submit(send)) {
+			}
+		} else {
+			send.start();
+		}
+	}
+
+	private void completed(MessageBatchEntity body, SourceHeaders headers, RetryQueue.Entry retry, SumoHttpSender.Outcome outcome) {
+		if (outcome == SumoHttpSender.Outcome.SENT) {
+			accepted(body.getContentLength());
+			body.release();
+		} else if (outcome == SumoHttpSender.Outcome.TOO_LARGE) {
+			split(body, headers);
+		} else if (outcome == SumoHttpSender.Outcome.NOT_ATTEMPTED) {
+			// Throttled before it went out: not a failure, so it costs no attempt
+			if (retry == null) {
+				requeue(body.getMessages());
+			} else {
+				retryQueue.requeue(retry);
+			}
+		} else {
+			failed(body, headers, retry);
+		}
+	}
+
+	// Queue both halves of a batch rejected as too large, for the flushing thread to send.
+	private void split(MessageBatchEntity body, SourceHeaders headers) {
+		rejected(body.getContentLength());
+
+		List<SumoMessage> messages = body.getMessages();
+		if (messages.size() == 1) {
+			log.error("Dropping a message of " + body.getContentLength() + " bytes, too large for Sumo Logic");
+			body.release();
+			return;
+		}
+
+		int half = messages.size() / 2;
+		splitBatches.add(new SplitBatch(entity(new ArrayList<SumoMessage>(messages.subList(0, half))), headers));
+		splitBatches.add(new SplitBatch(entity(new ArrayList<SumoMessage>(messages.subList(half, messages.size()))), headers));
+		if (wakeup != null) {
+			wakeup.run();
+		}
+	}
+
+	private synchronized void rejected(long bytes) {
+		if (bytes < smallestRejected) {
+			smallestRejected = bytes;
+			largestAccepted = Math.min(largestAccepted, bytes - 1);
+			log.warn("Sumo Logic rejected a request of " + bytes + " bytes (uncompressed) as too large; sending at most "
+					+ learnedMaxBytes() + " uncompressed bytes per request");
+		}
+	}
+
+	private synchronized void accepted(long bytes) {
+		if (bytes < smallestRejected && bytes > largestAccepted) {
+			largestAccepted = bytes;
+		}
+	}
+
+	// The size a request should not exceed, as learned from 413 responses; 0 if none was seen.
+	// Sizes are of the uncompressed batch: with compression on, the collector judges the compressed
+	// body, whose length is only known once it is written, while batches are cut by uncompressed
+	// size. The limit learned is then an approximation, which holds as long as messages compress
+	// about as well as those the collector rejected; a batch rejected anyway is just split again.
+	private synchronized long learnedMaxBytes() {
+		if (smallestRejected == Long.MAX_VALUE) {
+			return 0;
+		}
+		return Math.max(1, Math.max(largestAccepted, smallestRejected / 2));
+	}
+
+	private void failed(MessageBatchEntity body, SourceHeaders headers, RetryQueue.Entry retry) {
+		if (retry == null) {
+			retryQueue.add(body, headers, System.currentTimeMillis());
+		} else {
+			retryQueue.failed(retry, System.currentTimeMillis());
+		}
+	}
+
+	private OrderedLane lane(SourceHeaders headers) {
+		OrderedLane lane = lanes.get(headers);
+		if (lane == null) {
+			OrderedLane created = new OrderedLane(headers);
+			lane = lanes.putIfAbsent(headers, created);
+			if (lane == null) {
+				lane = created;
+			}
+		}
+		return lane;
+	}
+
+	/**
+	 * One attempt at a batch holding an in-flight permit, completed on a sender thread or, with the
+	 * non-blocking client, on its I/O thread.
+	 */
+	private final class Send implements Runnable, FutureCallback<SumoHttpSender.Outcome> {
+		private final MessageBatchEntity body;
+		private final SourceHeaders headers;
+		private final RetryQueue.Entry retry;
+		private OrderedLane lane;
+
+		Send(MessageBatchEntity body, SourceHeaders headers, RetryQueue.Entry retry) {
+			this.body = body;
+			this.headers = headers;
+			this.retry = retry;
+		}
+
+		void start() {
+			if (sender.isAsync()) {
+				sender.sendAsync(body, headers, this);
+				return;
+			}
+			try {
+				senderPool.execute(this);
+			} catch (RejectedExecutionException e) {
+				// Shutting down
+				finish(SumoHttpSender.Outcome.RETRY);
+			}
+		}
+
+		@Override
+		public void run() {
+			finish(sender.trySend(body, headers));
+		}
+
+		@Override
+		public void completed(SumoHttpSender.Outcome outcome) {
+			finish(outcome);
+		}
+
+		@Override
+		public void failed(Exception e) {
+			finish(SumoHttpSender.Outcome.RETRY);
+		}
+
+		@Override
+		public void cancelled() {
+			finish(SumoHttpSender.Outcome.RETRY);
+		}
+
+		private void finish(SumoHttpSender.Outcome outcome) {
+			try {
+				SumoBufferFlushingTask.this.completed(body, headers, retry, outcome);
+			} finally {
+				inFlight.release();
+				if (lane != null) {
+					lane.next();
+				}
+			}
+			// The flusher may be parked until its next flush, past when this batch is due again
+			if (outcome == SumoHttpSender.Outcome.RETRY && wakeup != null) {
+				wakeup.run();
+			}
+		}
+	}
+
+	/**
+	 * Starts its sends one at a time, in submission order, each once the previous one completed.
+	 * Once idle it retires, leaving its place in <tt>lanes</tt> to a new one, so that the lanes of
+	 * headers seen once do not pile up.
+	 */
+	private final class OrderedLane {
+		private final SourceHeaders headers;
+		private final Queue<Send> waiting = new ArrayDeque<Send>();
+		private boolean busy;
+		private boolean retired;
+
+		OrderedLane(SourceHeaders headers) {
+			this.headers = headers;
+		}
+
+		// Return false if the lane retired, and <tt>send</tt> should go to the one replacing it.
+		boolean submit(Send send) {
+			synchronized (this) {
+				if (retired) {
+					return false;
+				}
+				send.lane = this;
+				if (busy) {
+					waiting.add(send);
+					return true;
+				}
+				busy = true;
+			}
+			send.start();
+			return true;
+		}
+
+		void next() {
+			Send send;
+			synchronized (this) {
+				send = waiting.poll();
+				if (send == null) {
+					busy = false;
+					retired = true;
+					lanes.remove(headers, this);
+					return;
+				}
+			}
+			send.start();
+		}
+	}
+
+	private void sendBlocking(MessageBatchEntity body, SourceHeaders headers) {
+		try {
+			if (sender.isInitialized()) {
+				sender.send(body, headers);
+			} else {
+				log.error("HTTPSender is not initialized");
+
+			}
+		} finally {
+			body.release();
+		}
+	}
+
+	/**
+	 * Make another attempt at every batch of the retry queue which is due, and at the halves of the
+	 * batches rejected as too large. Never waits, other than for a free sender.
+	 */
+	public void retryDue() {
+		if (retryQueue == null || !sender.isInitialized()) {
+			return;
+		}
+
+		// Stop as soon as the endpoint throttles us; the rest waits where it is
+		SplitBatch split;
+		while (canSend() && (split = splitBatches.poll()) != null) {
+			dispatch(split.body, split.headers, null);
+		}
+
+		long now = System.currentTimeMillis();
+		RetryQueue.Entry entry;
+		while (canSend() && (entry = retryQueue.pollDue(now)) != null) {
+			dispatch(entry.getBody(), entry.getHeaders(), entry);
+		}
+	}
+
+	@Override
+	protected boolean canSend() {
+		return millisUntilSenderAvailable() == 0;
+	}
+
+	/**
+	 * Return how long the endpoint asked us to back off for; nothing should be sent meanwhile.
+	 */
+	public long millisUntilSenderAvailable() {
+		return sender.isInitialized() ? sender.millisUntilAvailable() : 0;
+	}
+
+	public long millisUntilNextRetry() {
+		if (!splitBatches.isEmpty()) {
+			return 0;
+		}
+		return retryQueue == null ? Long.MAX_VALUE : retryQueue.millisUntilNextAttempt(System.currentTimeMillis());
+	}
+
+	private static final class SplitBatch {
+		private final MessageBatchEntity body;
+		private final SourceHeaders headers;
 
+		SplitBatch(MessageBatchEntity body, SourceHeaders headers) {
+			this.body = body;
+			this.headers = headers;
 		}
 	}
 }
@@ -26,20 +26,34 @@
 package com.sumologic.logback.http;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 
+import com.sumologic.logback.message.SourceHeaders;
+
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -48,20 +62,85 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class SumoHttpSender {
 
+    /**
+     * What became of a single attempt at a request.
+     */
+    public enum Outcome {
+        SENT,           // Accepted, or rejected for good
+        RETRY,          // Failed or throttled; worth another attempt later
+        NOT_ATTEMPTED,  // Not sent while the endpoint asked us to back off; no attempt was made
+        TOO_LARGE       // Rejected with 413; worth another attempt in smaller pieces
+    }
+
     private long retryInterval = 10000L;
+    private long maxRetryInterval = 60000L;
 
-    private volatile String url = null;
+    private volatile String url = null;         // One collector URL, or several separated by commas
+    private String endpointSelection = EndpointSelector.ROUND_ROBIN;
+    private int endpointFailureThreshold = 3;
+    private long endpointQuarantine = 30000;
+    private volatile EndpointSelector endpoints = new EndpointSelector(Collections.<String>emptyList(), null);
     private int connectionTimeout = 1000;
     private int socketTimeout = 60000;
-    private volatile HttpClient httpClient = null;
+    private volatile CloseableHttpClient httpClient = null;
+    private volatile CloseableHttpAsyncClient asyncClient = null;
+    private Thread idleConnectionEvictor = null;
+    private boolean async = false;               // Send on a non-blocking I/O reactor instead of the calling thread
+    private int ioThreads = 1;                   // Threads of the I/O reactor
+    private final HttpConnectionPool connectionPool = new HttpConnectionPool();
+    private int warmupConnections = 0;           // Connections opened in the background by init()
+    private String compressionMethod = null;     // "gzip", "deflate" or null to send uncompressed
+    private long compressionThreshold = 1024;    // Smaller bodies are not worth compressing
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker(retryInterval, maxRetryInterval);
 
 
     public void setRetryInterval(long retryInterval) {
         this.retryInterval = retryInterval;
     }
 
+    public void setMaxRetryInterval(long maxRetryInterval) {
+        this.maxRetryInterval = maxRetryInterval;
+    }
+
+    /**
+     * Send to <tt>url</tt>, or spread requests over several collector URLs separated by commas,
+     * failing over from the ones which keep failing.
+     */
     public void setUrl(String url) {
         this.url = url;
+        updateEndpoints();
+    }
+
+    /**
+     * How to pick among several URLs: {@link EndpointSelector#ROUND_ROBIN} or
+     * {@link EndpointSelector#LEAST_LATENCY}.
+     */
+    public void setEndpointSelection(String endpointSelection) {
+        String previous = this.endpointSelection;
+        this.endpointSelection = endpointSelection;
+        try {
+            updateEndpoints();
+        } catch (IllegalArgumentException e) {
+            this.endpointSelection = previous;
+            throw e;
+        }
+    }
+
+    /**
+     * Stop sending to an endpoint for <tt>quarantine</tt> ms once it failed
+     * <tt>failureThreshold</tt> times in a row, as long as there is another one.
+     */
+    public void setEndpointFailover(int failureThreshold, long quarantine) {
+        this.endpointFailureThreshold = failureThreshold;
+        this.endpointQuarantine = quarantine;
+        endpoints.configure(failureThreshold, quarantine);
+    }
+
+    private void updateEndpoints() {
+        EndpointSelector endpoints = new EndpointSelector(EndpointSelector.parseUrls(url), endpointSelection);
+        endpoints.configure(endpointFailureThreshold, endpointQuarantine);
+        connectionPool.setRouteCount(endpoints.getEndpoints().size());
+        this.endpoints = endpoints;
     }
 
     public void setConnectionTimeout(int connectionTimeout) {
@@ -72,35 +151,285 @@ public class SumoHttpSender {
         this.socketTimeout = socketTimeout;
     }
 
+    public void setCompressionMethod(String compressionMethod) {
+        if (compressionMethod != null && !CompressingEntity.GZIP.equals(compressionMethod)
+                && !CompressingEntity.DEFLATE.equals(compressionMethod)) {
+            throw new IllegalArgumentException("Unsupported compression method: " + compressionMethod);
+        }
+        this.compressionMethod = compressionMethod;
+    }
+
+    public void setCompressionThreshold(long compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Send on a non-blocking client, driven by <tt>ioThreads</tt> threads however many requests are
+     * in flight; see {@link #sendAsync}. The blocking methods still work, waiting on the request.
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        connectionPool.setMaxConnections(maxConnections);
+    }
+
+    /**
+     * Have {@link #init} open this many connections in the background, so that the first requests
+     * do not pay for DNS, connecting and the TLS handshake. Only for the blocking transport.
+     */
+    public void setWarmupConnections(int warmupConnections) {
+        this.warmupConnections = warmupConnections;
+    }
+
+    public void setKeepAlive(long keepAlive) {
+        connectionPool.setKeepAlive(keepAlive);
+    }
+
+    public void setIdleConnectionTimeout(long idleConnectionTimeout) {
+        connectionPool.setIdleTimeout(idleConnectionTimeout);
+    }
+
+    /**
+     * Only for the blocking transport; the non-blocking one needs no such check.
+     */
+    public void setValidateAfterInactivity(int validateAfterInactivity) {
+        connectionPool.setValidateAfterInactivity(validateAfterInactivity);
+    }
+
+    /**
+     * Return how many requests were sent since this sender was created.
+     */
+    public long getRequestCount() {
+        return connectionPool.getRequestCount();
+    }
+
+    /**
+     * Return how many of those requests reused an open connection, saving a handshake.
+     */
+    public long getReusedConnectionCount() {
+        return connectionPool.getReusedConnectionCount();
+    }
+
+    /**
+     * Return how many connections the blocking transport opened, warmed up ones included.
+     */
+    public long getOpenedConnectionCount() {
+        return connectionPool.getOpenedConnectionCount();
+    }
+
     public boolean isInitialized() {
-        return httpClient != null;
+        return httpClient != null || asyncClient != null;
     }
 
     public void init() {
-        HttpParams params = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
-        HttpConnectionParams.setSoTimeout(params, socketTimeout);
-        httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(), params);
+        if (isInitialized()) {
+            close();
+        }
+        circuitBreaker.configure(retryInterval, maxRetryInterval);
+        if (async) {
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(connectionTimeout)
+                    .setSocketTimeout(socketTimeout)
+                    .build();
+            IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                    .setIoThreadCount(Math.max(1, ioThreads))
+                    .setConnectTimeout(connectionTimeout)
+                    .setSoTimeout(socketTimeout)
+                    .build();
+            ThreadFactory threadFactory = new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r);
+                    thread.setName("SumoIOReactorThread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            PoolingNHttpClientConnectionManager connectionManager;
+            try {
+                connectionManager = new PoolingNHttpClientConnectionManager(
+                        new DefaultConnectingIOReactor(reactorConfig, threadFactory));
+            } catch (IOReactorException e) {
+                log.error("Could not start the I/O reactor", e);
+                return;
+            }
+            connectionManager.setMaxTotal(connectionPool.getMaxTotalConnections());
+            connectionManager.setDefaultMaxPerRoute(connectionPool.getMaxConnections());
+
+            CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .setThreadFactory(threadFactory)
+                    .setKeepAliveStrategy(connectionPool.keepAliveStrategy())
+                    .addInterceptorLast(connectionPool.reuseCounter())
+                    .build();
+            client.start();
+            asyncClient = client;
+            idleConnectionEvictor = connectionPool.evictIdleConnections(connectionManager);
+            if (warmupConnections > 0) {
+                log.warn("Connections are only opened ahead with the blocking transport, ignoring warmupConnections");
+            }
+            return;
+        }
+
+        connectionPool.setConnectionTimeout(connectionTimeout);
+        connectionPool.setSocketTimeout(socketTimeout);
+        httpClient = connectionPool.createClient();
+        if (warmupConnections > 0) {
+            for (EndpointSelector.Endpoint endpoint : endpoints.getEndpoints()) {
+                connectionPool.warmUp(endpoint.getUrl(), warmupConnections);
+            }
+        }
     }
 
     public void close() {
-        httpClient.getConnectionManager().shutdown();
-        httpClient = null;
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                log.warn("Could not close the HTTP client", e);
+            }
+            httpClient = null;
+        }
+        if (idleConnectionEvictor != null) {
+            idleConnectionEvictor.interrupt();
+            idleConnectionEvictor = null;
+        }
+        if (asyncClient != null) {
+            try {
+                asyncClient.close();
+            } catch (IOException e) {
+                log.warn("Could not close the HTTP client", e);
+            }
+            asyncClient = null;
+        }
     }
 
     public void send(String body, String name) {
-        keepTrying(body, name);
+        send(new StringEntity(body, ContentType.APPLICATION_JSON), new SourceHeaders(name, null, null, null));
     }
 
-    private void keepTrying(String body, String name) {
+    /**
+     * Send <tt>body</tt>, retrying every <tt>retryInterval</tt> ms until it succeeds. Blocks the
+     * calling thread for as long as the endpoint is unavailable.
+     */
+    public void send(HttpEntity body, SourceHeaders headers) {
+        keepTrying(compress(body), headers);
+    }
+
+    /**
+     * Make a single attempt at sending <tt>body</tt>, unless the endpoint asked us to back off.
+     * @return RETRY if the attempt failed and is worth retrying, NOT_ATTEMPTED if it was not made
+     */
+    public Outcome trySend(HttpEntity body, SourceHeaders headers) {
+        if (!circuitBreaker.tryAcquire(System.currentTimeMillis())) {
+            return Outcome.NOT_ATTEMPTED;
+        }
+
+        try {
+            return post(compress(body), headers);
+        } catch (IOException e) {
+            circuitBreaker.failed(System.currentTimeMillis());
+            return Outcome.RETRY;
+        }
+    }
+
+    /**
+     * Make a single attempt at sending <tt>body</tt> without waiting for it, on the non-blocking
+     * client. The outcome is that of {@link #trySend}; <tt>callback</tt>, which may be null, is
+     * called on an I/O thread and must not block.
+     * @return a future completed with the outcome of the request
+     */
+    public Future<Outcome> sendAsync(HttpEntity body, SourceHeaders headers, FutureCallback<Outcome> callback) {
+        final BasicFuture<Outcome> result = new BasicFuture<Outcome>(callback);
+        CloseableHttpAsyncClient client = asyncClient;
+        final EndpointSelector endpoints = this.endpoints;
+        final EndpointSelector.Endpoint endpoint = endpoints.select(System.currentTimeMillis());
+        if (client == null || endpoint == null || !client.isRunning()) {
+            log.warn("Could not send log to Sumo Logic: " + (endpoint == null ? "unknown endpoint" : "sender is closed"));
+            result.completed(Outcome.RETRY);
+            return result;
+        }
+        if (!circuitBreaker.tryAcquire(System.currentTimeMillis())) {
+            result.completed(Outcome.NOT_ATTEMPTED);
+            return result;
+        }
+
+        final long started = System.currentTimeMillis();
+        FutureCallback<HttpResponse> responseCallback = new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                Outcome outcome = handle(response, endpoints, endpoint, started);
+                if (outcome == Outcome.RETRY) {
+                    log.warn("Could not send log to Sumo Logic: server unavailable");
+                }
+                result.completed(outcome);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                log.warn("Could not send log to Sumo Logic");
+                log.debug("Reason:", e);
+                circuitBreaker.failed(System.currentTimeMillis());
+                endpoints.failed(endpoint, System.currentTimeMillis());
+                result.completed(Outcome.RETRY);
+            }
+
+            @Override
+            public void cancelled() {
+                circuitBreaker.failed(System.currentTimeMillis());
+                result.completed(Outcome.RETRY);
+            }
+        };
+        try {
+            client.execute(request(endpoint, compress(body), headers), responseCallback);
+        } catch (IllegalStateException e) {
+            // The client was closed under us
+            responseCallback.failed(e);
+        }
+        return result;
+    }
+
+    /**
+     * Return how long the endpoint asked us to back off for; 0 if requests may be sent now.
+     */
+    public long millisUntilAvailable() {
+        return circuitBreaker.millisUntilAvailable(System.currentTimeMillis());
+    }
+
+    private HttpEntity compress(HttpEntity body) {
+        if (compressionMethod == null) {
+            return body;
+        }
+        // Unknown lengths are compressed, they are not likely to be small.
+        long length = body.getContentLength();
+        if (length >= 0 && length < compressionThreshold) {
+            return body;
+        }
+        return new CompressingEntity(body, compressionMethod);
+    }
+
+    private void keepTrying(HttpEntity body, SourceHeaders headers) {
         boolean success = false;
         do {
             try {
-                trySend(body, name);
+                if (post(body, headers) == Outcome.TOO_LARGE) {
+                    log.warn("Dropping a request of " + body.getContentLength() + " bytes, too large for Sumo Logic");
+                }
                 success = true;
             } catch (Exception e) {
                 try {
-                    Thread.sleep(retryInterval);
+                    Thread.sleep(Math.max(retryInterval, millisUntilAvailable()));
                 } catch (InterruptedException e1) {
                     break;
                 }
@@ -108,27 +437,85 @@ public class SumoHttpSender {
         } while (!success && !Thread.currentThread().isInterrupted());
     }
 
-    private void trySend(String body, String name) throws IOException {
+    private HttpPost request(EndpointSelector.Endpoint endpoint, HttpEntity body, SourceHeaders headers) {
+        HttpPost post = new HttpPost(endpoint.getUrl());
+        setHeader(post, "X-Sumo-Name", headers.getName());
+        setHeader(post, "X-Sumo-Category", headers.getCategory());
+        setHeader(post, "X-Sumo-Host", headers.getHost());
+        setHeader(post, "X-Sumo-Fields", headers.getFields());
+        post.setEntity(body);
+        return post;
+    }
+
+    private static void setHeader(HttpPost post, String header, String value) {
+        if (value != null) {
+            post.setHeader(header, value);
+        }
+    }
+
+    private Outcome handle(HttpResponse response, EndpointSelector endpoints, EndpointSelector.Endpoint endpoint,
+                           long started) {
+        int statusCode = response.getStatusLine().getStatusCode();
+        long now = System.currentTimeMillis();
+        // Throttling is about the account, unavailability about the collector
+        if (statusCode == 503) {
+            endpoints.failed(endpoint, now);
+        } else {
+            endpoints.succeeded(endpoint, now - started);
+        }
+
+        if (statusCode == 503 && endpoints.getEndpoints().size() > 1) {
+            // The other endpoints may well be up, but a probe still has to be resolved
+            circuitBreaker.failed(now);
+            return Outcome.RETRY;
+        }
+        if (statusCode == 503 || statusCode == 429) {
+            circuitBreaker.throttled(retryAfter(response), System.currentTimeMillis());
+            return Outcome.RETRY;
+        }
+        circuitBreaker.succeeded();
+        if (statusCode == 413) {
+            return Outcome.TOO_LARGE;
+        }
+        if (statusCode != 200) {
+            log.warn(String.format("Received HTTP error from Sumo Service: %d", statusCode));
+        } else {
+            log.debug("Successfully sent log request to Sumo Logic");
+        }
+        return Outcome.SENT;
+    }
+
+    // Never returns RETRY, throws instead.
+    private Outcome post(HttpEntity body, SourceHeaders headers) throws IOException {
         HttpPost post = null;
+        EndpointSelector endpoints = this.endpoints;
+        EndpointSelector.Endpoint endpoint = null;
         try {
-            if (url == null)
+            CloseableHttpClient httpClient = this.httpClient;   // May be closed from another thread
+            CloseableHttpAsyncClient asyncClient = this.asyncClient;
+            endpoint = endpoints.select(System.currentTimeMillis());
+            if (endpoint == null)
                 throw new IOException("Unknown endpoint");
+            if (httpClient == null && asyncClient == null)
+                throw new IOException("Sender is closed");
 
-            post = new HttpPost(url);
-            post.setHeader("X-Sumo-Name", name);
-            post.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
-            HttpResponse response = httpClient.execute(post);
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode != 200) {
-                // Not success. Only retry if status is unavailable.
-                if (statusCode == 503 || statusCode == 429) {
-                    throw new IOException("Server unavailable");
-                }
-                log.warn(String.format("Received HTTP error from Sumo Service: %d", statusCode));
+            post = request(endpoint, body, headers);
+            long started = System.currentTimeMillis();
+            HttpResponse response;
+            try {
+                response = httpClient != null ? httpClient.execute(post) : await(asyncClient, post);
+            } catch (IOException e) {
+                endpoints.failed(endpoint, System.currentTimeMillis());
+                throw e;
             }
             //need to consume the body if you want to re-use the connection.
-            log.debug("Successfully sent log request to Sumo Logic");
             EntityUtils.consume(response.getEntity());
+            Outcome outcome = handle(response, endpoints, endpoint, started);
+            if (outcome == Outcome.RETRY) {
+                // Not success. Only retry if status is unavailable.
+                throw new IOException("Server unavailable");
+            }
+            return outcome;
         } catch (IOException e) {
             log.warn("Could not send log to Sumo Logic");
             log.debug("Reason:", e);
@@ -140,4 +527,33 @@ public class SumoHttpSender {
         }
     }
 
+    private static HttpResponse await(CloseableHttpAsyncClient client, HttpPost post) throws IOException {
+        try {
+            return client.execute(post, null).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending", e);
+        } catch (IllegalStateException e) {
+            // The client was closed under us
+            throw new IOException(e);
+        }
+    }
+
+    // The pause asked for by a Retry-After header in ms, given in seconds or as a date; -1 if none.
+    private static long retryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
 }
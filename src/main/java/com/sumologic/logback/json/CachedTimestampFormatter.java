@@ -0,0 +1,150 @@
+package com.sumologic.logback.json;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Formats timestamps exactly like a <tt>SimpleDateFormat</tt> with the same pattern, but only
+ * formats once per second: the text around the milliseconds is cached and just the three
+ * <tt>SSS</tt> digits are patched in. Patterns without milliseconds reuse the whole text for the
+ * second; any other use of <tt>S</tt> is formatted every time.
+ * <p>
+ * Thread-safe without locking: the cache is an immutable snapshot behind a volatile reference,
+ * replaced by whichever thread first sees a new second.
+ */
+public class CachedTimestampFormatter {
+
+    private static final int NO_MILLIS = 0;
+    private static final int PATCH_MILLIS = 1;
+    private static final int UNCACHED = 2;
+
+    private final String pattern;
+    private final String timeZoneId;
+    private final int mode;
+    private volatile CachedSecond cached;
+
+    /**
+     * @param pattern a <tt>SimpleDateFormat</tt> pattern
+     * @param timeZoneId the time zone to format in, or null for the default one
+     */
+    public CachedTimestampFormatter(String pattern, String timeZoneId) {
+        this.pattern = pattern;
+        this.timeZoneId = timeZoneId;
+        this.mode = modeOf(pattern);
+        // Fail early on an invalid pattern, like SimpleDateFormat would.
+        newDateFormat();
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public String getTimeZoneId() {
+        return timeZoneId;
+    }
+
+    public String format(long timestamp) {
+        if (mode == UNCACHED) {
+            return newDateFormat().format(new Date(timestamp));
+        }
+
+        long second = Math.floorDiv(timestamp, 1000L);
+        CachedSecond snapshot = cached;
+        if (snapshot == null || snapshot.second != second) {
+            snapshot = cache(second);
+            if (snapshot == null) {
+                return newDateFormat().format(new Date(timestamp));
+            }
+            cached = snapshot;
+        }
+
+        if (mode == NO_MILLIS) {
+            return snapshot.prefix;
+        }
+
+        int millis = (int) (timestamp - second * 1000);
+        int length = snapshot.prefix.length() + 3 + snapshot.suffix.length();
+        char[] chars = new char[length];
+        snapshot.prefix.getChars(0, snapshot.prefix.length(), chars, 0);
+        int position = snapshot.prefix.length();
+        chars[position] = (char) ('0' + millis / 100);
+        chars[position + 1] = (char) ('0' + (millis / 10) % 10);
+        chars[position + 2] = (char) ('0' + millis % 10);
+        snapshot.suffix.getChars(0, snapshot.suffix.length(), chars, position + 3);
+        return new String(chars);
+    }
+
+    private CachedSecond cache(long second) {
+        SimpleDateFormat format = newDateFormat();
+        String first = format.format(new Date(second * 1000));
+        if (mode == NO_MILLIS) {
+            return new CachedSecond(second, first, null);
+        }
+
+        // Locate the milliseconds by comparing the first and last millisecond of the second.
+        String last = format.format(new Date(second * 1000 + 999));
+        int position = 0;
+        while (position < first.length() && first.charAt(position) == last.charAt(position)) {
+            position++;
+        }
+        if (first.length() != last.length() || position + 3 > first.length()
+                || !first.startsWith("000", position) || !last.startsWith("999", position)
+                || !first.substring(position + 3).equals(last.substring(position + 3))) {
+            return null;
+        }
+        return new CachedSecond(second, first.substring(0, position), first.substring(position + 3));
+    }
+
+    private SimpleDateFormat newDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
+        if (timeZoneId != null) {
+            format.setTimeZone(TimeZone.getTimeZone(timeZoneId));
+        }
+        return format;
+    }
+
+    // Count the runs of unquoted 'S' in the pattern.
+    private static int modeOf(String pattern) {
+        int runs = 0;
+        int runLength = 0;
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            }
+            if (!quoted && c == 'S') {
+                if (runLength == 0) {
+                    runs++;
+                }
+                runLength++;
+            } else if (runLength > 0) {
+                if (runLength != 3) {
+                    return UNCACHED;
+                }
+                runLength = 0;
+            }
+        }
+
+        if (runLength > 0 && runLength != 3) {
+            return UNCACHED;
+        }
+        if (runs == 0) {
+            return NO_MILLIS;
+        }
+        return runs == 1 ? PATCH_MILLIS : UNCACHED;
+    }
+
+    private static final class CachedSecond {
+        private final long second;
+        private final String prefix;
+        private final String suffix;
+
+        CachedSecond(long second, String prefix, String suffix) {
+            this.second = second;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.sumologic.logback.json;
+
+import ch.qos.logback.classic.pattern.ThrowableHandlingConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.core.CoreConstants;
+
+/**
+ * Drop-in for <tt>ThrowableProxyConverter</tt> that renders through a {@link ThrowableRenderer},
+ * so repeated stack traces are not rendered again. The first option is the length, as in
+ * <tt>%ex{full}</tt>, <tt>%ex{short}</tt> or <tt>%ex{10}</tt>; evaluators and ignored lines are
+ * not supported.
+ */
+public class CachingThrowableProxyConverter extends ThrowableHandlingConverter {
+
+    private int maxFrames = Integer.MAX_VALUE;
+    private boolean foldCommonFrames = true;
+    private int cacheSize = ThrowableRenderer.DEFAULT_CACHE_SIZE;
+
+    private volatile ThrowableRenderer renderer = new ThrowableRenderer();
+
+    @Override
+    public void start() {
+        String length = getFirstOption();
+        if (length != null) {
+            length = length.toLowerCase();
+            if ("full".equals(length)) {
+                maxFrames = Integer.MAX_VALUE;
+            } else if ("short".equals(length)) {
+                maxFrames = 1;
+            } else {
+                try {
+                    maxFrames = Integer.parseInt(length);
+                } catch (NumberFormatException nfe) {
+                    addError("Could not parse [" + length + "] as an integer");
+                    maxFrames = Integer.MAX_VALUE;
+                }
+            }
+        }
+
+        renderer = new ThrowableRenderer(maxFrames, foldCommonFrames, cacheSize);
+        super.start();
+    }
+
+    @Override
+    public String convert(ILoggingEvent event) {
+        IThrowableProxy tp = event.getThrowableProxy();
+        if (tp == null) {
+            return CoreConstants.EMPTY_STRING;
+        }
+
+        return renderer.render(tp);
+    }
+
+    public ThrowableRenderer getRenderer() {
+        return renderer;
+    }
+
+    public void setMaxFrames(int maxFrames) {
+        this.maxFrames = maxFrames;
+    }
+
+    public void setFoldCommonFrames(boolean foldCommonFrames) {
+        this.foldCommonFrames = foldCommonFrames;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+}
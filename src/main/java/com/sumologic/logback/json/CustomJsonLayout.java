@@ -7,6 +7,13 @@ import java.util.Map;
 
 public class CustomJsonLayout extends JsonLayout {
 
+    private volatile CachedTimestampFormatter timestampFormatter;
+
+    public CustomJsonLayout() {
+        // Same output as the default converter, but repeated stack traces are rendered once.
+        setThrowableProxyConverter(new CachingThrowableProxyConverter());
+    }
+
     @Override
     protected Map toJsonMap(ILoggingEvent event) {
         // Add default params to log.
@@ -19,4 +26,24 @@ public class CustomJsonLayout extends JsonLayout {
 
         return map;
     }
+
+    @Override
+    protected String formatTimestamp(long timestamp) {
+        if (timestampFormat == null || timestamp < 0) {
+            return String.valueOf(timestamp);
+        }
+
+        // Rebuild the cache if the format was reconfigured.
+        CachedTimestampFormatter formatter = timestampFormatter;
+        if (formatter == null || !timestampFormat.equals(formatter.getPattern())
+                || !equal(timestampFormatTimezoneId, formatter.getTimeZoneId())) {
+            formatter = new CachedTimestampFormatter(timestampFormat, timestampFormatTimezoneId);
+            timestampFormatter = formatter;
+        }
+        return formatter.format(timestamp);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
 }
@@ -0,0 +1,405 @@
+package com.sumologic.logback.json;
+
+import ch.qos.logback.classic.pattern.ThrowableHandlingConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import ch.qos.logback.contrib.json.classic.JsonLayout;
+import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.spi.LifeCycle;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sumologic.logback.encoder.EventEncoder;
+import com.sumologic.logback.message.ChunkedOutputStream;
+import com.sumologic.logback.message.Utf8ChunkWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Writes the same JSON as {@link CustomJsonLayout} with a <tt>JacksonJsonFormatter</tt>, but in a
+ * single pass: fields go straight from the event into a streaming generator over the pooled chunks,
+ * without building the intermediate maps.
+ * <p>
+ * Field order and precedence follow the map the layout builds: the standard fields first, then the
+ * context properties, then the MDC, where a later key replaces the value of an earlier one in place.
+ * Pretty printing is not supported.
+ * <p>
+ * The context properties (git tags, version, application name...) hardly ever change, so they are
+ * serialized once and spliced into every event as raw bytes. The fragment is rebuilt whenever the
+ * logger context hands out a new property map, which it does on every change, e.g. a reload.
+ * <p>
+ * Stack traces are rendered by a {@link ThrowableRenderer}, whose cached frame blocks are copied
+ * into the event as already escaped bytes, unless a <tt>throwableProxyConverter</tt> is set.
+ */
+public class StreamingJsonEncoder implements EventEncoder<ILoggingEvent>, LifeCycle {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] STANDARD_FIELDS = {
+            JsonLayout.TIMESTAMP_ATTR_NAME, JsonLayout.LEVEL_ATTR_NAME, JsonLayout.THREAD_ATTR_NAME,
+            JsonLayout.MDC_ATTR_NAME, JsonLayout.LOGGER_ATTR_NAME, JsonLayout.FORMATTED_MESSAGE_ATTR_NAME,
+            JsonLayout.MESSAGE_ATTR_NAME, JsonLayout.CONTEXT_ATTR_NAME, JsonLayout.EXCEPTION_ATTR_NAME};
+
+    private boolean includeTimestamp = true;
+    private boolean includeLevel = true;
+    private boolean includeThreadName = true;
+    private boolean includeMDC = true;
+    private boolean includeLoggerName = true;
+    private boolean includeFormattedMessage = true;
+    private boolean includeMessage = false;
+    private boolean includeException = true;
+    private boolean includeContextName = true;
+    private boolean appendLineSeparator = false;
+    private String timestampFormat;
+    private String timestampFormatTimezoneId;
+    private int maxStackFrames = Integer.MAX_VALUE;
+    private boolean foldCommonFrames = true;
+    private int throwableCacheSize = ThrowableRenderer.DEFAULT_CACHE_SIZE;
+
+    private ThrowableHandlingConverter throwableProxyConverter;
+    private ThrowableRenderer throwableRenderer = new ThrowableRenderer();
+    private CachedTimestampFormatter timestampFormatter;
+    private boolean started;
+    private volatile ContextFragment contextFragment;
+
+    @Override
+    public void encode(ILoggingEvent event, ChunkedOutputStream out) throws IOException {
+        Map<String, String> context = contextProperties(event);
+        Map<String, String> mdc = event.getMDCPropertyMap();
+
+        // The character based generator is the one JacksonJsonFormatter uses; the byte based one
+        // escapes non-BMP characters differently.
+        JsonGenerator generator = JSON_FACTORY.createGenerator(new Utf8ChunkWriter(out));
+        generator.writeStartObject();
+
+        if (includeTimestamp) {
+            writeField(generator, JsonLayout.TIMESTAMP_ATTR_NAME, formatTimestamp(event.getTimeStamp()), context, mdc);
+        }
+        if (includeLevel) {
+            writeField(generator, JsonLayout.LEVEL_ATTR_NAME, String.valueOf(event.getLevel()), context, mdc);
+        }
+        if (includeThreadName) {
+            writeField(generator, JsonLayout.THREAD_ATTR_NAME, event.getThreadName(), context, mdc);
+        }
+        if (hasMdcField(mdc)) {
+            if (!writeOverride(generator, JsonLayout.MDC_ATTR_NAME, context, mdc)) {
+                generator.writeObjectFieldStart(JsonLayout.MDC_ATTR_NAME);
+                for (Map.Entry<String, String> entry : mdc.entrySet()) {
+                    writeStringField(generator, entry.getKey(), entry.getValue());
+                }
+                generator.writeEndObject();
+            }
+        }
+        if (includeLoggerName) {
+            writeField(generator, JsonLayout.LOGGER_ATTR_NAME, event.getLoggerName(), context, mdc);
+        }
+        if (includeFormattedMessage) {
+            writeField(generator, JsonLayout.FORMATTED_MESSAGE_ATTR_NAME, event.getFormattedMessage(), context, mdc);
+        }
+        if (includeMessage) {
+            writeField(generator, JsonLayout.MESSAGE_ATTR_NAME, event.getMessage(), context, mdc);
+        }
+        if (includeContextName) {
+            LoggerContextVO loggerContext = event.getLoggerContextVO();
+            writeField(generator, JsonLayout.CONTEXT_ATTR_NAME, loggerContext != null ? loggerContext.getName() : null,
+                    context, mdc);
+        }
+        IThrowableProxy throwable = event.getThrowableProxy();
+        if (includeException && throwable != null) {
+            if (throwableProxyConverter != null) {
+                String exception = throwableProxyConverter.convert(event);
+                if (exception != null && !exception.equals("")) {
+                    writeField(generator, JsonLayout.EXCEPTION_ATTR_NAME, exception, context, mdc);
+                }
+            } else if (!writeOverride(generator, JsonLayout.EXCEPTION_ATTR_NAME, context, mdc)) {
+                // An empty raw value completes the field; the string itself bypasses the generator.
+                generator.writeFieldName(JsonLayout.EXCEPTION_ATTR_NAME);
+                generator.writeRawValue("");
+                generator.flush();
+                throwableRenderer.writeJsonString(throwable, out);
+            }
+        }
+
+        ContextFragment fragment = contextFragment(context);
+        if (fragment != null && fragment.isSpliceable(mdc) && generator.getOutputContext().getEntryCount() > 0) {
+            generator.flush();
+            if (fragment.bytes.length > 0) {
+                out.write(',');
+                out.write(fragment.bytes, 0, fragment.bytes.length);
+            }
+        } else if (context != null) {
+            for (Map.Entry<String, String> entry : context.entrySet()) {
+                String key = entry.getKey();
+                if (isStandardField(key, event, mdc)) {
+                    continue;
+                }
+                if (mdc != null && mdc.containsKey(key)) {
+                    writeStringField(generator, key, mdc.get(key));
+                } else {
+                    writeStringField(generator, key, entry.getValue());
+                }
+            }
+        }
+
+        if (mdc != null) {
+            for (Map.Entry<String, String> entry : mdc.entrySet()) {
+                String key = entry.getKey();
+                if (isStandardField(key, event, mdc) || (context != null && context.containsKey(key))) {
+                    continue;
+                }
+                writeStringField(generator, key, entry.getValue());
+            }
+        }
+
+        generator.writeEndObject();
+        generator.close();
+
+        if (appendLineSeparator) {
+            out.writeUtf8(CoreConstants.LINE_SEPARATOR);
+        }
+    }
+
+    // Write a standard field unless its value is missing, honouring context/MDC keys with the same name.
+    private void writeField(JsonGenerator generator, String name, String value,
+                            Map<String, String> context, Map<String, String> mdc) throws IOException {
+        if (value == null) {
+            return;
+        }
+        if (!writeOverride(generator, name, context, mdc)) {
+            generator.writeStringField(name, value);
+        }
+    }
+
+    private boolean writeOverride(JsonGenerator generator, String name,
+                                  Map<String, String> context, Map<String, String> mdc) throws IOException {
+        if (mdc != null && mdc.containsKey(name)) {
+            writeStringField(generator, name, mdc.get(name));
+            return true;
+        }
+        if (context != null && context.containsKey(name)) {
+            writeStringField(generator, name, context.get(name));
+            return true;
+        }
+        return false;
+    }
+
+    private void writeStringField(JsonGenerator generator, String name, String value) throws IOException {
+        generator.writeFieldName(name);
+        if (value == null) {
+            generator.writeNull();
+        } else {
+            generator.writeString(value);
+        }
+    }
+
+    // Whether the layout would already have put <tt>key</tt> among the standard fields.
+    private boolean isStandardField(String key, ILoggingEvent event, Map<String, String> mdc) {
+        if (JsonLayout.TIMESTAMP_ATTR_NAME.equals(key)) {
+            return includeTimestamp;
+        } else if (JsonLayout.LEVEL_ATTR_NAME.equals(key)) {
+            return includeLevel;
+        } else if (JsonLayout.THREAD_ATTR_NAME.equals(key)) {
+            return includeThreadName && event.getThreadName() != null;
+        } else if (JsonLayout.MDC_ATTR_NAME.equals(key)) {
+            return hasMdcField(mdc);
+        } else if (JsonLayout.LOGGER_ATTR_NAME.equals(key)) {
+            return includeLoggerName && event.getLoggerName() != null;
+        } else if (JsonLayout.FORMATTED_MESSAGE_ATTR_NAME.equals(key)) {
+            return includeFormattedMessage && event.getFormattedMessage() != null;
+        } else if (JsonLayout.MESSAGE_ATTR_NAME.equals(key)) {
+            return includeMessage && event.getMessage() != null;
+        } else if (JsonLayout.CONTEXT_ATTR_NAME.equals(key)) {
+            return includeContextName && event.getLoggerContextVO() != null
+                    && event.getLoggerContextVO().getName() != null;
+        } else if (JsonLayout.EXCEPTION_ATTR_NAME.equals(key)) {
+            if (!includeException || event.getThrowableProxy() == null) {
+                return false;
+            }
+            if (throwableProxyConverter == null) {
+                return true;
+            }
+            String exception = throwableProxyConverter.convert(event);
+            return exception != null && !exception.equals("");
+        }
+        return false;
+    }
+
+    private boolean hasMdcField(Map<String, String> mdc) {
+        return includeMDC && mdc != null && !mdc.isEmpty();
+    }
+
+    private ContextFragment contextFragment(Map<String, String> context) throws IOException {
+        if (context == null) {
+            return null;
+        }
+
+        ContextFragment fragment = contextFragment;
+        if (fragment == null || fragment.properties != context) {
+            fragment = new ContextFragment(context);
+            contextFragment = fragment;
+        }
+        return fragment;
+    }
+
+    private Map<String, String> contextProperties(ILoggingEvent event) {
+        LoggerContextVO loggerContext = event.getLoggerContextVO();
+        return loggerContext != null ? loggerContext.getPropertyMap() : null;
+    }
+
+    private String formatTimestamp(long timestamp) {
+        if (timestampFormat == null || timestamp < 0) {
+            return String.valueOf(timestamp);
+        }
+
+        return timestampFormatter.format(timestamp);
+    }
+
+    /**
+     * The serialized <tt>"key":"value"</tt> pairs of one context property map, without braces.
+     */
+    private static final class ContextFragment {
+        private final Map<String, String> properties;
+        private final byte[] bytes;     // null when a property shadows a standard field
+
+        ContextFragment(Map<String, String> properties) throws IOException {
+            this.properties = properties;
+            this.bytes = shadowsStandardField(properties) ? null : serialize(properties);
+        }
+
+        // MDC keys equal to a context property replace its value in place.
+        boolean isSpliceable(Map<String, String> mdc) {
+            if (bytes == null) {
+                return false;
+            }
+            if (mdc != null && !mdc.isEmpty() && !properties.isEmpty()) {
+                for (String key : mdc.keySet()) {
+                    if (properties.containsKey(key)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private static boolean shadowsStandardField(Map<String, String> properties) {
+            for (String field : STANDARD_FIELDS) {
+                if (properties.containsKey(field)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static byte[] serialize(Map<String, String> properties) throws IOException {
+            StringWriter writer = new StringWriter();
+            JsonGenerator generator = JSON_FACTORY.createGenerator(writer);
+            generator.writeStartObject();
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                generator.writeFieldName(entry.getKey());
+                if (entry.getValue() == null) {
+                    generator.writeNull();
+                } else {
+                    generator.writeString(entry.getValue());
+                }
+            }
+            generator.writeEndObject();
+            generator.close();
+
+            String object = writer.toString();
+            return object.substring(1, object.length() - 1).getBytes(UTF_8);
+        }
+    }
+
+    @Override
+    public void start() {
+        timestampFormatter = timestampFormat != null
+                ? new CachedTimestampFormatter(timestampFormat, timestampFormatTimezoneId) : null;
+        throwableRenderer = new ThrowableRenderer(maxStackFrames, foldCommonFrames, throwableCacheSize);
+        if (throwableProxyConverter != null) {
+            throwableProxyConverter.start();
+        }
+        started = true;
+    }
+
+    @Override
+    public void stop() {
+        started = false;
+        if (throwableProxyConverter != null) {
+            throwableProxyConverter.stop();
+        }
+    }
+
+    @Override
+    public boolean isStarted() {
+        return started;
+    }
+
+    public void setIncludeTimestamp(boolean includeTimestamp) {
+        this.includeTimestamp = includeTimestamp;
+    }
+
+    public void setIncludeLevel(boolean includeLevel) {
+        this.includeLevel = includeLevel;
+    }
+
+    public void setIncludeThreadName(boolean includeThreadName) {
+        this.includeThreadName = includeThreadName;
+    }
+
+    public void setIncludeMDC(boolean includeMDC) {
+        this.includeMDC = includeMDC;
+    }
+
+    public void setIncludeLoggerName(boolean includeLoggerName) {
+        this.includeLoggerName = includeLoggerName;
+    }
+
+    public void setIncludeFormattedMessage(boolean includeFormattedMessage) {
+        this.includeFormattedMessage = includeFormattedMessage;
+    }
+
+    public void setIncludeMessage(boolean includeMessage) {
+        this.includeMessage = includeMessage;
+    }
+
+    public void setIncludeException(boolean includeException) {
+        this.includeException = includeException;
+    }
+
+    public void setIncludeContextName(boolean includeContextName) {
+        this.includeContextName = includeContextName;
+    }
+
+    public void setAppendLineSeparator(boolean appendLineSeparator) {
+        this.appendLineSeparator = appendLineSeparator;
+    }
+
+    public void setTimestampFormat(String timestampFormat) {
+        this.timestampFormat = timestampFormat;
+    }
+
+    public void setTimestampFormatTimezoneId(String timestampFormatTimezoneId) {
+        this.timestampFormatTimezoneId = timestampFormatTimezoneId;
+    }
+
+    public void setMaxStackFrames(int maxStackFrames) {
+        this.maxStackFrames = maxStackFrames;
+    }
+
+    public void setFoldCommonFrames(boolean foldCommonFrames) {
+        this.foldCommonFrames = foldCommonFrames;
+    }
+
+    public void setThrowableCacheSize(int throwableCacheSize) {
+        this.throwableCacheSize = throwableCacheSize;
+    }
+
+    public void setThrowableProxyConverter(ThrowableHandlingConverter throwableProxyConverter) {
+        this.throwableProxyConverter = throwableProxyConverter;
+    }
+}
@@ -0,0 +1,245 @@
+package com.sumologic.logback.json;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.CoreConstants;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.sumologic.logback.message.ChunkedOutputStream;
+
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Renders an {@link IThrowableProxy} in the format of logback's <tt>ThrowableProxyConverter</tt>:
+ * the first line of each throwable, its frames, then its suppressed throwables and its cause.
+ * <p>
+ * When an outage makes the same exception repeat, the frames are what is expensive to render and
+ * what repeats; the first lines usually carry a different message each time. So the frames of each
+ * throwable in the chain are rendered once into a block, cached under a fingerprint of the frames
+ * themselves, and reused: as text for layouts and as JSON-escaped UTF-8 bytes for
+ * {@link StreamingJsonEncoder}. The cache holds at most <tt>cacheSize</tt> blocks and starts over
+ * when full.
+ */
+public class ThrowableRenderer {
+
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    private static final int BUILDER_CAPACITY = 2048;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int maxFrames;
+    private final boolean foldCommonFrames;
+    private final int cacheSize;
+    private final ConcurrentHashMap<FrameKey, FrameBlock> cache = new ConcurrentHashMap<FrameKey, FrameBlock>();
+
+    /**
+     * Render like a <tt>ThrowableProxyConverter</tt> without options.
+     */
+    public ThrowableRenderer() {
+        this(Integer.MAX_VALUE, true, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param maxFrames the number of frames to print per throwable, as the length option of
+     *                  <tt>%ex{length}</tt>; frames in common with the enclosing trace are only
+     *                  folded when all frames fit
+     * @param foldCommonFrames whether to replace the frames in common with the enclosing trace by
+     *                         a <tt>... n common frames omitted</tt> line
+     * @param cacheSize the maximum number of cached frame blocks, 0 to disable caching
+     */
+    public ThrowableRenderer(int maxFrames, boolean foldCommonFrames, int cacheSize) {
+        if (maxFrames <= 0) {
+            throw new IllegalArgumentException("Max frames must be at least 1");
+        }
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative");
+        }
+
+        this.maxFrames = maxFrames;
+        this.foldCommonFrames = foldCommonFrames;
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Render the whole chain as text.
+     * @param tp the throwable to render
+     * @return the rendering, empty for a null throwable
+     */
+    public String render(IThrowableProxy tp) {
+        final StringBuilder builder = new StringBuilder(BUILDER_CAPACITY);
+        append(new Target() {
+            @Override
+            public void firstLine(String line) {
+                builder.append(line);
+            }
+
+            @Override
+            public void frames(FrameBlock block) {
+                builder.append(block.text);
+            }
+        }, null, ThrowableProxyUtil.REGULAR_EXCEPTION_INDENT, tp);
+        return builder.toString();
+    }
+
+    /**
+     * Write the rendering of the whole chain as a quoted JSON string.
+     * @param tp the throwable to render
+     * @param out the stream to write to
+     */
+    public void writeJsonString(IThrowableProxy tp, final ChunkedOutputStream out) {
+        out.write('"');
+        append(new Target() {
+            @Override
+            public void firstLine(String line) {
+                out.writeUtf8(CharBuffer.wrap(JsonStringEncoder.getInstance().quoteAsString(line)));
+            }
+
+            @Override
+            public void frames(FrameBlock block) {
+                out.write(block.json, 0, block.json.length);
+            }
+        }, null, ThrowableProxyUtil.REGULAR_EXCEPTION_INDENT, tp);
+        out.write('"');
+    }
+
+    /**
+     * Return the number of cached frame blocks.
+     * @return the count
+     */
+    public int cachedBlocks() {
+        return cache.size();
+    }
+
+    private void append(Target target, String prefix, int indent, IThrowableProxy tp) {
+        if (tp == null) {
+            return;
+        }
+
+        StringBuilder line = new StringBuilder();
+        ThrowableProxyUtil.indent(line, indent - 1);
+        if (prefix != null) {
+            line.append(prefix);
+        }
+        line.append(tp.getClassName()).append(": ").append(tp.getMessage()).append(CoreConstants.LINE_SEPARATOR);
+        target.firstLine(line.toString());
+        target.frames(frames(indent, tp));
+
+        IThrowableProxy[] suppressed = tp.getSuppressed();
+        if (suppressed != null) {
+            for (IThrowableProxy current : suppressed) {
+                append(target, CoreConstants.SUPPRESSED, indent + ThrowableProxyUtil.SUPPRESSED_EXCEPTION_INDENT,
+                        current);
+            }
+        }
+        append(target, CoreConstants.CAUSED_BY, indent, tp.getCause());
+    }
+
+    private FrameBlock frames(int indent, IThrowableProxy tp) {
+        StackTraceElementProxy[] steps = tp.getStackTraceElementProxyArray();
+        boolean unrestricted = maxFrames > steps.length;
+        int printed = unrestricted ? steps.length : maxFrames;
+        int omitted = 0;
+        if (foldCommonFrames && unrestricted && tp.getCommonFrames() > 0) {
+            omitted = tp.getCommonFrames();
+            printed -= omitted;
+        }
+
+        if (cacheSize == 0) {
+            return renderFrames(indent, steps, printed, omitted);
+        }
+
+        FrameKey key = new FrameKey(indent, steps, printed, omitted);
+        FrameBlock block = cache.get(key);
+        if (block == null) {
+            block = renderFrames(indent, steps, printed, omitted);
+            if (cache.size() >= cacheSize) {
+                cache.clear();
+            }
+            cache.put(key, block);
+        }
+        return block;
+    }
+
+    private static FrameBlock renderFrames(int indent, StackTraceElementProxy[] steps, int printed, int omitted) {
+        StringBuilder builder = new StringBuilder(BUILDER_CAPACITY);
+        for (int i = 0; i < printed; i++) {
+            ThrowableProxyUtil.indent(builder, indent);
+            builder.append(steps[i]).append(CoreConstants.LINE_SEPARATOR);
+        }
+        if (omitted > 0) {
+            ThrowableProxyUtil.indent(builder, indent);
+            builder.append("... ").append(omitted).append(" common frames omitted").append(CoreConstants.LINE_SEPARATOR);
+        }
+        return new FrameBlock(builder.toString());
+    }
+
+    private interface Target {
+        void firstLine(String line);
+
+        void frames(FrameBlock block);
+    }
+
+    private static final class FrameBlock {
+        private final String text;
+        private final byte[] json;
+
+        FrameBlock(String text) {
+            this.text = text;
+            this.json = new String(JsonStringEncoder.getInstance().quoteAsString(text)).getBytes(UTF_8);
+        }
+    }
+
+    /**
+     * The printed frames of one throwable. Keeps a reference to the frames of the first throwable
+     * seen with this fingerprint, which is fine for a bounded cache.
+     */
+    private static final class FrameKey {
+        private final int indent;
+        private final StackTraceElementProxy[] steps;
+        private final int printed;
+        private final int omitted;
+        private final int hash;
+
+        FrameKey(int indent, StackTraceElementProxy[] steps, int printed, int omitted) {
+            this.indent = indent;
+            this.steps = steps;
+            this.printed = printed;
+            this.omitted = omitted;
+
+            int h = 31 * (31 * indent + printed) + omitted;
+            for (int i = 0; i < printed; i++) {
+                h = 31 * h + steps[i].getStackTraceElement().hashCode();
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FrameKey)) {
+                return false;
+            }
+
+            FrameKey other = (FrameKey) o;
+            if (hash != other.hash || indent != other.indent || printed != other.printed || omitted != other.omitted) {
+                return false;
+            }
+            for (int i = 0; i < printed; i++) {
+                if (steps[i] != other.steps[i]
+                        && !steps[i].getStackTraceElement().equals(other.steps[i].getStackTraceElement())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import com.sumologic.logback.queue.ConcurrentRingQueue;
+
+/**
+ * A bounded, lock-free pool of {@link ByteChunk}s. When the pool is empty a new chunk is
+ * allocated, and chunks released into a full pool are left to the garbage collector, so the pool
+ * never blocks and never grows beyond <tt>maxChunks</tt>.
+ */
+public class ByteChunkPool {
+
+    private final int chunkSize;
+    private final ConcurrentRingQueue<ByteChunk> free;
+
+    public ByteChunkPool(int chunkSize, int maxChunks) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        }
+
+        this.chunkSize = chunkSize;
+        this.free = new ConcurrentRingQueue<ByteChunk>(Math.max(1, maxChunks));
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Return the number of chunks currently available for reuse.
+     * @return the count
+     */
+    public int available() {
+        return free.size();
+    }
+
+    /**
+     * Take an empty chunk from the pool, allocating one if none is available.
+     * @return an empty chunk
+     */
+    public ByteChunk acquire() {
+        ByteChunk chunk = free.poll();
+        if (chunk == null) {
+            return new ByteChunk(chunkSize);
+        }
+        return chunk;
+    }
+
+    /**
+     * Return a chain of chunks, linked through their <tt>next</tt> field, to the pool.
+     * @param head first chunk of the chain, may be null
+     */
+    public void release(ByteChunk head) {
+        ByteChunk chunk = head;
+        while (chunk != null) {
+            ByteChunk next = chunk.next;
+            chunk.next = null;
+            chunk.length = 0;
+            if (chunk.data.length == chunkSize) {
+                free.offer(chunk);
+            }
+            chunk = next;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import java.io.OutputStream;
+
+/**
+ * An <tt>OutputStream</tt> that writes into chunks taken from a {@link ByteChunkPool} and turns
+ * them into a {@link PooledMessage}. One instance is reused for many messages, but it is not
+ * thread-safe: keep one per thread.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    private final ByteChunkPool pool;
+    private ByteChunk head;
+    private ByteChunk tail;
+    private int length;
+
+    public ChunkedOutputStream(ByteChunkPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Number of bytes written since the last {@link #toMessage} or {@link #discard}.
+     * @return the length in bytes
+     */
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRoom();
+        tail.data[tail.length++] = (byte) b;
+        length++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) {
+        while (count > 0) {
+            ensureRoom();
+            int n = Math.min(count, tail.remaining());
+            System.arraycopy(bytes, offset, tail.data, tail.length, n);
+            tail.length += n;
+            length += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Encode <tt>text</tt> to UTF-8 directly into the chunks.
+     * @param text the characters to write
+     */
+    public void writeUtf8(CharSequence text) {
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                write(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                writeCodePoint(Character.toCodePoint(c, text.charAt(++i)));
+            } else if (Character.isSurrogate(c)) {
+                write('?');
+            } else {
+                writeCodePoint(c);
+            }
+        }
+    }
+
+    /**
+     * Write characters known to be below <tt>0x80</tt>, one byte each.
+     * @param chars the characters to write
+     * @param offset index of the first character
+     * @param count number of characters
+     */
+    public void writeAscii(char[] chars, int offset, int count) {
+        while (count > 0) {
+            ensureRoom();
+            int n = Math.min(count, tail.remaining());
+            byte[] data = tail.data;
+            int position = tail.length;
+            for (int i = 0; i < n; i++) {
+                data[position + i] = (byte) chars[offset + i];
+            }
+            tail.length += n;
+            length += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Encode a single code point, which must not be a surrogate, to UTF-8.
+     * @param codePoint the code point to write
+     */
+    public void writeCodePoint(int codePoint) {
+        if (codePoint < 0x80) {
+            write(codePoint);
+        } else if (codePoint < 0x800) {
+            write(0xc0 | (codePoint >> 6));
+            write(0x80 | (codePoint & 0x3f));
+        } else if (codePoint < 0x10000) {
+            write(0xe0 | (codePoint >> 12));
+            write(0x80 | ((codePoint >> 6) & 0x3f));
+            write(0x80 | (codePoint & 0x3f));
+        } else {
+            write(0xf0 | (codePoint >> 18));
+            write(0x80 | ((codePoint >> 12) & 0x3f));
+            write(0x80 | ((codePoint >> 6) & 0x3f));
+            write(0x80 | (codePoint & 0x3f));
+        }
+    }
+
+    /**
+     * Hand over everything written so far as a message and start a new one.
+     * @return the message owning the written chunks
+     */
+    public PooledMessage toMessage() {
+        PooledMessage message = new PooledMessage(pool, head, length);
+        reset();
+        return message;
+    }
+
+    /**
+     * Give back everything written so far, e.g. after the encoder failed half-way.
+     */
+    public void discard() {
+        pool.release(head);
+        reset();
+    }
+
+    private void ensureRoom() {
+        if (tail == null) {
+            head = tail = pool.acquire();
+        } else if (tail.remaining() == 0) {
+            ByteChunk chunk = pool.acquire();
+            tail.next = chunk;
+            tail = chunk;
+        }
+    }
+
+    private void reset() {
+        head = null;
+        tail = null;
+        length = 0;
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+
+/**
+ * A message whose layout is postponed until the batch is built, so application threads only pay
+ * for buffering the event. The event must have gone through
+ * <tt>prepareForDeferredProcessing()</tt> before it is wrapped.
+ * <p>
+ * The cost is estimated up front from the event and never changes, so the buffer capacity still
+ * holds even though the final size is only known after formatting.
+ */
+public class DeferredMessage extends SumoMessage {
+
+    // Rough size of the fixed parts of a formatted event: timestamp, level, field names, quoting.
+    private static final int FIXED_OVERHEAD = 128;
+
+    // Rough size of a formatted stack frame: "\tat ", class, method, file and line number.
+    private static final int FRAME_LENGTH = 100;
+
+    // Causes and suppressed exceptions are counted this deep at most, in case they form a cycle.
+    private static final int MAX_THROWABLE_DEPTH = 16;
+
+    private static final SumoMessage EMPTY = new StringMessage("");
+
+    private final ILoggingEvent event;
+    private final MessageFormatter<ILoggingEvent> formatter;
+    private final long cost;
+    private volatile SumoMessage formatted;
+
+    public DeferredMessage(ILoggingEvent event, MessageFormatter<ILoggingEvent> formatter) {
+        this.event = event;
+        this.formatter = formatter;
+        this.cost = estimateCost(event);
+    }
+
+    public ILoggingEvent getEvent() {
+        return event;
+    }
+
+    /**
+     * Format the event unless that already happened. Safe to call from any thread, but a message
+     * is expected to be formatted by one thread only.
+     */
+    public void format() {
+        if (formatted == null) {
+            SumoMessage message = formatter.format(event);
+            formatted = message != null ? message : EMPTY;
+        }
+    }
+
+    @Override
+    public long cost() {
+        return cost;
+    }
+
+    @Override
+    public long length() {
+        format();
+        return formatted.length();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        format();
+        formatted.writeTo(out);
+    }
+
+    @Override
+    public void release() {
+        SumoMessage message = formatted;
+        if (message != null) {
+            message.release();
+        }
+    }
+
+    /**
+     * Estimate the formatted size of an event from the strings and the stack trace it carries.
+     * @param event the event to be formatted later
+     * @return the estimated size in bytes
+     */
+    public static long estimateCost(ILoggingEvent event) {
+        long cost = FIXED_OVERHEAD;
+        cost += length(event.getFormattedMessage());
+        cost += length(event.getLoggerName());
+        cost += length(event.getThreadName());
+        cost += length(event.getMDCPropertyMap());
+        cost += length(event.getThrowableProxy(), 0);
+
+        LoggerContextVO context = event.getLoggerContextVO();
+        if (context != null) {
+            cost += length(context.getPropertyMap());
+        }
+        return cost;
+    }
+
+    private static long length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    // The stack trace with its causes and suppressed exceptions, usually the bulk of an event.
+    private static long length(IThrowableProxy throwable, int depth) {
+        if (throwable == null || depth >= MAX_THROWABLE_DEPTH) {
+            return 0;
+        }
+
+        long length = length(throwable.getClassName()) + length(throwable.getMessage()) + 2;
+        if (throwable.getStackTraceElementProxyArray() != null) {
+            // Frames shared with the enclosing trace are printed as a single "... n more" line.
+            int frames = throwable.getStackTraceElementProxyArray().length - throwable.getCommonFrames();
+            length += (long) Math.max(0, frames) * FRAME_LENGTH + FRAME_LENGTH;
+        }
+        length += length(throwable.getCause(), depth + 1);
+        IThrowableProxy[] suppressed = throwable.getSuppressed();
+        if (suppressed != null) {
+            for (IThrowableProxy proxy : suppressed) {
+                length += length(proxy, depth + 1);
+            }
+        }
+        return length;
+    }
+
+    private static long length(Map<String, String> map) {
+        if (map == null) {
+            return 0;
+        }
+
+        long length = 0;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            // Quotes, colon and comma around every pair.
+            length += length(entry.getKey()) + length(entry.getValue()) + 6;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed region of direct memory, outside the Java heap, holding the bytes of buffered messages.
+ * <p>
+ * The region is allocated once and cut into blocks of <tt>blockSize</tt> bytes. A message stored
+ * here takes as many free blocks as its bytes need and gives them back once released, so the
+ * memory is reused rather than allocated again; all that stays on the heap is an
+ * {@link OffHeapMessage} with the indexes of its blocks. Thread-safe.
+ */
+public class OffHeapArena {
+
+    private final ByteBuffer memory;
+    private final int blockSize;
+    private final int[] free;       // Stack of the indexes of the free blocks
+    private int freeCount;
+
+    // Every thread copies through its own view of the memory, and a block-sized array
+    private final ThreadLocal<View> views = new ThreadLocal<View>() {
+        @Override
+        protected View initialValue() {
+            return new View();
+        }
+    };
+
+    private final class View {
+        private final ByteBuffer buffer = memory.duplicate();
+        private final byte[] scratch = new byte[blockSize];
+    }
+
+    public OffHeapArena(long capacity, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be at least 1");
+        }
+        int blocks = (int) Math.max(1, Math.min(capacity, Integer.MAX_VALUE) / blockSize);
+
+        this.memory = ByteBuffer.allocateDirect(blocks * blockSize);
+        this.blockSize = blockSize;
+        this.free = new int[blocks];
+        for (int i = 0; i < blocks; i++) {
+            free[i] = blocks - 1 - i;
+        }
+        this.freeCount = blocks;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Return the number of bytes the arena holds.
+     */
+    public long capacity() {
+        return (long) free.length * blockSize;
+    }
+
+    /**
+     * Return the number of bytes taken by the blocks of stored messages.
+     */
+    public synchronized long used() {
+        return (long) (free.length - freeCount) * blockSize;
+    }
+
+    /**
+     * Copy the bytes of <tt>message</tt> into the arena and release it.
+     * @return the copy, with the headers, level and sequence of the message; or the message itself
+     *         if the arena has no room left for it
+     */
+    public SumoMessage store(SumoMessage message) {
+        long length = message.length();
+        int[] blocks = allocate((int) ((length + blockSize - 1) / blockSize));
+        if (blocks == null || length > Integer.MAX_VALUE) {
+            if (blocks != null) {
+                free(blocks);
+            }
+            return message;
+        }
+
+        try {
+            message.writeTo(new BlockOutputStream(blocks, views.get()));
+        } catch (IOException e) {
+            // Longer than it said; keep it as it is
+            free(blocks);
+            return message;
+        }
+
+        OffHeapMessage copy = new OffHeapMessage(this, blocks, (int) length);
+        copy.setHeaders(message.getHeaders());
+        copy.setLevel(message.getLevel());
+        copy.setSequence(message.getSequence());
+        message.release();
+        return copy;
+    }
+
+    private synchronized int[] allocate(int count) {
+        if (count > freeCount) {
+            return null;
+        }
+        int[] blocks = new int[count];
+        for (int i = 0; i < count; i++) {
+            blocks[i] = free[--freeCount];
+        }
+        return blocks;
+    }
+
+    synchronized void free(int[] blocks) {
+        for (int block : blocks) {
+            free[freeCount++] = block;
+        }
+    }
+
+    /**
+     * Write the first <tt>length</tt> bytes held by <tt>blocks</tt> to <tt>out</tt>.
+     */
+    void writeTo(int[] blocks, int length, OutputStream out) throws IOException {
+        View view = views.get();
+        for (int i = 0; i < blocks.length && length > 0; i++) {
+            int n = Math.min(length, blockSize);
+            view.buffer.limit(blocks[i] * blockSize + n);
+            view.buffer.position(blocks[i] * blockSize);
+            view.buffer.get(view.scratch, 0, n);
+            out.write(view.scratch, 0, n);
+            length -= n;
+        }
+    }
+
+    private final class BlockOutputStream extends OutputStream {
+        private final int[] blocks;
+        private final ByteBuffer buffer;
+        private int block = 0;
+        private int offset = 0;     // Within the current block
+
+        BlockOutputStream(int[] blocks, View view) {
+            this.blocks = blocks;
+            this.buffer = view.buffer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureRoom();
+            buffer.limit(buffer.capacity());
+            buffer.put(blocks[block] * blockSize + offset++, (byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) throws IOException {
+            while (len > 0) {
+                ensureRoom();
+                int n = Math.min(len, blockSize - offset);
+                buffer.limit(blocks[block] * blockSize + offset + n);
+                buffer.position(blocks[block] * blockSize + offset);
+                buffer.put(bytes, off, n);
+                offset += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void ensureRoom() throws IOException {
+            if (offset == blockSize) {
+                block++;
+                offset = 0;
+            }
+            if (block >= blocks.length) {
+                throw new IOException("Message longer than its length");
+            }
+        }
+    }
+}
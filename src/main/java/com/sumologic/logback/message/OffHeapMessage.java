@@ -0,0 +1,83 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A message whose bytes are held in the blocks of an {@link OffHeapArena}. The blocks go back to
+ * the arena once the message is released.
+ */
+public class OffHeapMessage extends SumoMessage {
+
+    private static final int[] NO_BLOCKS = new int[0];
+
+    private final OffHeapArena arena;
+    private int[] blocks;
+    private final int length;
+
+    OffHeapMessage(OffHeapArena arena, int[] blocks, int length) {
+        this.arena = arena;
+        this.blocks = blocks;
+        this.length = length;
+    }
+
+    @Override
+    public long cost() {
+        // What it takes from the arena, not from the heap
+        return (long) blocks.length * arena.getBlockSize();
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        arena.writeTo(blocks, length, out);
+    }
+
+    @Override
+    public void release() {
+        int[] blocks = this.blocks;
+        this.blocks = NO_BLOCKS;
+        arena.free(blocks);
+    }
+
+    @Override
+    public String toString() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        try {
+            writeTo(out);
+            return out.toString("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A message already encoded to UTF-8 into a chain of pooled chunks. The chunks are written to the
+ * request as they are and go back to the pool once the message is released.
+ */
+public class PooledMessage extends SumoMessage {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteChunkPool pool;
+    private ByteChunk head;
+    private final int length;
+
+    PooledMessage(ByteChunkPool pool, ByteChunk head, int length) {
+        this.pool = pool;
+        this.head = head;
+        this.length = length;
+    }
+
+    @Override
+    public long cost() {
+        return length;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        for (ByteChunk chunk = head; chunk != null; chunk = chunk.next) {
+            out.write(chunk.data, 0, chunk.length);
+        }
+    }
+
+    @Override
+    public void release() {
+        ByteChunk chunks = head;
+        head = null;
+        pool.release(chunks);
+    }
+
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (ByteChunk chunk = head; chunk != null; chunk = chunk.next) {
+            System.arraycopy(chunk.data, 0, bytes, offset, chunk.length);
+            offset += chunk.length;
+        }
+        return new String(bytes, 0, offset, UTF_8);
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+/**
+ * The <tt>X-Sumo-*</tt> headers of the request a message goes out in. Messages are only batched
+ * with others whose headers are equal. A null value is not sent, so the HTTP source's own
+ * setting applies.
+ */
+public final class SourceHeaders {
+
+    private final String name;       // X-Sumo-Name
+    private final String category;   // X-Sumo-Category
+    private final String host;       // X-Sumo-Host
+    private final String fields;     // X-Sumo-Fields, as "key=value" pairs separated by commas
+
+    public SourceHeaders(String name, String category, String host, String fields) {
+        this.name = name;
+        this.category = category;
+        this.host = host;
+        this.fields = fields;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getFields() {
+        return fields;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SourceHeaders)) {
+            return false;
+        }
+        SourceHeaders other = (SourceHeaders) o;
+        return equal(name, other.name) && equal(category, other.category)
+                && equal(host, other.host) && equal(fields, other.fields);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = hash(name);
+        hash = 31 * hash + hash(category);
+        hash = 31 * hash + hash(host);
+        return 31 * hash + hash(fields);
+    }
+
+    @Override
+    public String toString() {
+        return "name=" + name + ", category=" + category + ", host=" + host + ", fields=" + fields;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static int hash(String s) {
+        return s == null ? 0 : s.hashCode();
+    }
+}
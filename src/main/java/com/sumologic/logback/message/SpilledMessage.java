@@ -0,0 +1,168 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+import com.sumologic.logback.queue.BufferWithDiskSpillover;
+
+/**
+ * A message read back from a spill file or the write-ahead log. Its bytes are not copied out of
+ * the mapped file; they are written to the request straight from it.
+ */
+public class SpilledMessage extends SumoMessage {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Lays out messages with {@link #write}; the original message is released once written.
+     */
+    public static final BufferWithDiskSpillover.Serializer<SumoMessage> SERIALIZER =
+            new BufferWithDiskSpillover.Serializer<SumoMessage>() {
+                @Override
+                public void write(SumoMessage message, ByteBuffer out) {
+                    SpilledMessage.write(message, out);
+                    message.release();
+                }
+
+                @Override
+                public SumoMessage read(ByteBuffer in) {
+                    return SpilledMessage.read(in);
+                }
+            };
+
+    private final ByteBuffer content;
+
+    SpilledMessage(ByteBuffer content) {
+        this.content = content;
+    }
+
+    @Override
+    public long cost() {
+        return content.remaining();
+    }
+
+    @Override
+    public long length() {
+        return content.remaining();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffer bytes = content.duplicate();
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    @Override
+    public String toString() {
+        ByteBuffer bytes = content.duplicate();
+        byte[] array = new byte[bytes.remaining()];
+        bytes.get(array);
+        return new String(array, UTF_8);
+    }
+
+    /**
+     * Write the level, sequence, headers and bytes of <tt>message</tt> at the position of
+     * <tt>out</tt>.
+     * @throws java.nio.BufferOverflowException if it does not fit
+     */
+    public static void write(SumoMessage message, final ByteBuffer out) {
+        out.putInt(message.getLevel());
+        out.putLong(message.getSequence());
+        SourceHeaders headers = message.getHeaders();
+        out.put((byte) (headers != null ? 1 : 0));
+        if (headers != null) {
+            putString(out, headers.getName());
+            putString(out, headers.getCategory());
+            putString(out, headers.getHost());
+            putString(out, headers.getFields());
+        }
+
+        try {
+            message.writeTo(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    out.put((byte) b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    out.put(b, off, len);
+                }
+            });
+        } catch (IOException e) {
+            // Only the buffer is written to
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Return the message written by {@link #write} into <tt>in</tt>, which holds exactly its
+     * bytes. The message keeps a view of them rather than a copy.
+     */
+    public static SpilledMessage read(ByteBuffer in) {
+        int level = in.getInt();
+        long sequence = in.getLong();
+        SourceHeaders headers = null;
+        if (in.get() != 0) {
+            headers = new SourceHeaders(getString(in), getString(in), getString(in), getString(in));
+        }
+
+        SpilledMessage message = new SpilledMessage(in.slice());
+        message.setLevel(level);
+        message.setSequence(sequence);
+        message.setHeaders(headers);
+        return message;
+    }
+
+    private static void putString(ByteBuffer out, String s) {
+        if (s == null) {
+            out.putInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF_8);
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
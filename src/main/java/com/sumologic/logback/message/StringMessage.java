@@ -0,0 +1,74 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A message laid out as a <tt>String</tt>, encoded to UTF-8 only when it is sent.
+ */
+public class StringMessage extends SumoMessage {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String text;
+    private long length = -1;
+
+    public StringMessage(String text) {
+        this.text = text;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public long cost() {
+        // Note: This is only an estimate for total byte usage, since in UTF-8 encoding,
+        // the size of one character may be > 1 byte.
+        return text.length();
+    }
+
+    @Override
+    public long length() {
+        if (length < 0) {
+            length = Utf8.encodedLength(text);
+        }
+        return length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(text.getBytes(UTF_8));
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A single formatted log message as held by the appender's buffer, ready to be written into the
+ * body of a request.
+ */
+public abstract class SumoMessage {
+
+    private SourceHeaders headers;   // Null sends the message with the appender's own headers
+    private int level;               // Level.toInt() of the event, for eviction by priority
+    private long sequence;           // Of its entry in the write-ahead log; 0 if not logged
+
+    public SourceHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Send this message in a request with <tt>headers</tt>, batched only with messages which have
+     * equal ones.
+     * @param headers the headers, or null for the appender's own
+     */
+    public void setHeaders(SourceHeaders headers) {
+        this.headers = headers;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Estimated number of bytes this message holds, used to enforce the buffer capacity.
+     * @return the cost
+     */
+    public abstract long cost();
+
+    /**
+     * Exact number of bytes {@link #writeTo} produces.
+     * @return the length in bytes
+     */
+    public abstract long length();
+
+    /**
+     * Write the UTF-8 encoded message. May be called more than once, e.g. when a request is retried.
+     * @param out the destination stream
+     * @throws IOException if writing to the stream fails
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Called once the message has been delivered and will not be written again, so that any
+     * recyclable storage can be reused.
+     */
+    public void release() {
+    }
+}
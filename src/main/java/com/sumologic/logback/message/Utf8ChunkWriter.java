@@ -0,0 +1,108 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import java.io.Writer;
+
+/**
+ * A <tt>Writer</tt> encoding characters to UTF-8 straight into a {@link ChunkedOutputStream}.
+ * Surrogate pairs split across two writes are joined; unpaired surrogates become <tt>'?'</tt>,
+ * exactly like <tt>String.getBytes("UTF-8")</tt>.
+ */
+public class Utf8ChunkWriter extends Writer {
+
+    private final ChunkedOutputStream out;
+    private char pendingHighSurrogate;
+
+    public Utf8ChunkWriter(ChunkedOutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int c) {
+        write((char) c);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int count) {
+        int end = offset + count;
+        int i = offset;
+        while (i < end) {
+            if (chars[i] < 0x80 && pendingHighSurrogate == 0) {
+                int start = i;
+                while (i < end && chars[i] < 0x80) {
+                    i++;
+                }
+                out.writeAscii(chars, start, i - start);
+            } else {
+                write(chars[i++]);
+            }
+        }
+    }
+
+    @Override
+    public void write(String text, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            write(text.charAt(i));
+        }
+    }
+
+    private void write(char c) {
+        if (pendingHighSurrogate != 0) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                out.writeCodePoint(Character.toCodePoint(high, c));
+                return;
+            }
+            out.write('?');
+        }
+
+        if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            out.write('?');
+        } else {
+            out.writeCodePoint(c);
+        }
+    }
+
+    /**
+     * Nothing is buffered except a trailing high surrogate, which cannot be completed anymore.
+     */
+    @Override
+    public void flush() {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            out.write('?');
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+}
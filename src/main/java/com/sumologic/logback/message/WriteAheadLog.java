@@ -0,0 +1,402 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Log of the messages accepted by the appender, written before they are buffered so that they
+ * can be sent after the process died without stopping the appender.
+ * <p>
+ * Every message gets a sequence number and is appended to the current segment file, which rolls
+ * over past <tt>segmentSize</tt> bytes. A segment is deleted once all of its messages have been
+ * acknowledged, i.e. sent or given up on, evicted from a full buffer included; the current one
+ * is emptied instead. Once the log outgrows <tt>maxBytes</tt>, its oldest segments are dropped
+ * whether acknowledged or not.
+ * <p>
+ * Writes reach the operating system at once, which is enough to survive the process being
+ * killed. How often they are also forced to the disk, to survive the machine going down, is set
+ * by the sync policy: {@link #ALWAYS} before <tt>append</tt> returns, where appends running at the
+ * same time share one sync; {@link #PERIODIC} at most every <tt>syncInterval</tt> ms; or
+ * {@link #NEVER}.
+ * <p>
+ * Appending is serialized: every message is written with its own <tt>write</tt> call while the
+ * log is locked, on the logging thread. Logging threads therefore take turns while a log is
+ * used, whichever buffer sits behind it, and the number of appends per second is bounded by
+ * what one thread can write; see <tt>WriteAheadLogBenchmark</tt>.
+ * <p>
+ * Opening the log reads back the messages of the segments left by the previous process, up to
+ * the first torn record, for {@link #replay}. Since a segment is only deleted as a whole, some of
+ * them may already have been sent.
+ */
+@Slf4j
+public class WriteAheadLog {
+
+    public static final String ALWAYS = "always";
+    public static final String PERIODIC = "periodic";
+    public static final String NEVER = "never";
+
+    private static final String PREFIX = "sumo-wal-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER = 8;        // Length and checksum of every record
+
+    private static final class Segment {
+        private final File file;
+        private long firstSequence;
+        private long lastSequence;
+        private long bytes = 0;
+        private int unacknowledged = 0;
+
+        Segment(File file, long firstSequence) {
+            this.file = file;
+            this.firstSequence = firstSequence;
+            this.lastSequence = firstSequence - 1;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxBytes;
+    private String syncPolicy = PERIODIC;
+    private long syncInterval = 1000;
+
+    private final List<Segment> segments = new ArrayList<Segment>();    // Oldest first, last written
+    private FileChannel channel;
+    private ByteBuffer record = ByteBuffer.allocate(4096);
+    private final CRC32 checksum = new CRC32();
+    private long bytes = 0;
+    private volatile long lastSequence = 0;
+    private List<SumoMessage> replayed = new ArrayList<SumoMessage>();
+
+    private final Object syncLock = new Object();
+    private long syncedSequence = 0;
+    private volatile long lastSync = System.currentTimeMillis();
+
+    public WriteAheadLog(File directory, int segmentSize, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create write-ahead log directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = Math.max(HEADER, segmentSize);
+        this.maxBytes = maxBytes;
+
+        recover();
+        roll();
+    }
+
+    public synchronized void setSyncPolicy(String syncPolicy, long syncInterval) {
+        if (!ALWAYS.equals(syncPolicy) && !PERIODIC.equals(syncPolicy) && !NEVER.equals(syncPolicy)) {
+            throw new IllegalArgumentException("Unsupported sync policy: " + syncPolicy);
+        }
+        this.syncPolicy = syncPolicy;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Return the messages found in the log when it was opened, oldest first, once.
+     */
+    public synchronized List<SumoMessage> replay() {
+        List<SumoMessage> messages = replayed;
+        replayed = Collections.emptyList();
+        return messages;
+    }
+
+    /**
+     * Log <tt>message</tt>, giving it its sequence number, and sync as the policy says.
+     */
+    public void append(SumoMessage message) throws IOException {
+        long sequence;
+        String policy;
+        synchronized (this) {
+            sequence = lastSequence + 1;
+            message.setSequence(sequence);
+            ByteBuffer record = serialize(message);
+
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            Segment segment = segments.get(segments.size() - 1);
+            segment.lastSequence = sequence;
+            segment.bytes += record.limit();
+            segment.unacknowledged++;
+            bytes += record.limit();
+            lastSequence = sequence;
+
+            if (segment.bytes >= segmentSize) {
+                roll();
+            }
+            policy = syncPolicy;
+        }
+
+        if (ALWAYS.equals(policy)
+                || (PERIODIC.equals(policy) && System.currentTimeMillis() - lastSync >= syncInterval)) {
+            sync(sequence);
+        }
+    }
+
+    /**
+     * Force everything appended so far to the disk.
+     */
+    public void sync() throws IOException {
+        sync(lastSequence);
+    }
+
+    private void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            // Another thread's sync may already have covered it
+            if (syncedSequence >= sequence) {
+                return;
+            }
+            FileChannel channel;
+            long target;
+            synchronized (this) {
+                channel = this.channel;
+                target = lastSequence;
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // Rolled over meanwhile, and forced then
+            }
+            syncedSequence = target;
+            lastSync = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The messages were sent or given up on; delete the segments with nothing else left.
+     */
+    public synchronized void acknowledge(List<SumoMessage> messages) {
+        for (SumoMessage message : messages) {
+            long sequence = message.getSequence();
+            if (sequence <= 0) {
+                continue;
+            }
+            message.setSequence(0);
+
+            for (Iterator<Segment> iterator = segments.iterator(); iterator.hasNext(); ) {
+                Segment segment = iterator.next();
+                if (sequence < segment.firstSequence || sequence > segment.lastSequence) {
+                    continue;
+                }
+                segment.unacknowledged--;
+                if (segment.unacknowledged > 0) {
+                    break;
+                }
+                if (segment != segments.get(segments.size() - 1)) {
+                    iterator.remove();
+                    delete(segment);
+                } else {
+                    truncate(segment);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Return the bytes of the segments still kept.
+     */
+    public synchronized long size() {
+        return bytes;
+    }
+
+    /**
+     * Sync and close the current segment. The log must not be appended to afterwards.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            if (!NEVER.equals(syncPolicy)) {
+                channel.force(false);
+            }
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private ByteBuffer serialize(SumoMessage message) {
+        while (true) {
+            record.clear();
+            try {
+                record.position(HEADER);
+                SpilledMessage.write(message, record);
+                break;
+            } catch (BufferOverflowException e) {
+                record = ByteBuffer.allocate(record.capacity() * 2);
+            }
+        }
+
+        int length = record.position() - HEADER;
+        checksum.reset();
+        checksum.update(record.array(), HEADER, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) checksum.getValue());
+        record.flip();
+        return record;
+    }
+
+    // Start a new segment after the last sequence, closing the current one.
+    private void roll() throws IOException {
+        if (channel != null) {
+            close();
+        }
+
+        while (bytes > maxBytes && !segments.isEmpty()) {
+            Segment oldest = segments.remove(0);
+            if (oldest.unacknowledged > 0) {
+                log.warn("Dropping " + oldest.unacknowledged + " unsent messages from the write-ahead log");
+            }
+            delete(oldest);
+        }
+
+        // Sent already while it was being written
+        if (!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            if (last.unacknowledged <= 0) {
+                segments.remove(segments.size() - 1);
+                delete(last);
+            }
+        }
+
+        long first = lastSequence + 1;
+        File file = new File(directory, String.format("%s%019d%s", PREFIX, first, SUFFIX));
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        segments.add(new Segment(file, first));
+    }
+
+    // Empty the current segment, all sent, so that it is not replayed.
+    private void truncate(Segment segment) {
+        try {
+            channel.truncate(0);
+            bytes -= segment.bytes;
+            segment.bytes = 0;
+            segment.firstSequence = lastSequence + 1;
+        } catch (IOException e) {
+            log.warn("Could not truncate write-ahead log file " + segment.file, e);
+        }
+    }
+
+    private void delete(Segment segment) {
+        bytes -= segment.bytes;
+        if (!segment.file.delete()) {
+            log.warn("Could not delete write-ahead log file " + segment.file);
+        }
+    }
+
+    // Read the segments left by a previous process.
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);     // Zero-padded sequences sort by name
+
+        for (File file : files) {
+            long first;
+            try {
+                first = Long.parseLong(file.getName().substring(PREFIX.length(),
+                        file.getName().length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring " + file + ", not a write-ahead log file");
+                continue;
+            }
+            Segment segment = new Segment(file, first);
+
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                // The mapping outlives the file, so the replayed messages can keep their views
+                MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                int position = 0;
+                while (mapped.limit() - position >= HEADER) {
+                    int length = mapped.getInt(position);
+                    int crc = mapped.getInt(position + 4);
+                    if (length <= 0 || length > mapped.limit() - position - HEADER) {
+                        break;
+                    }
+                    ByteBuffer in = mapped.duplicate();
+                    in.limit(position + HEADER + length);
+                    in.position(position + HEADER);
+                    ByteBuffer content = in.slice();
+                    if (crc != crc(content)) {
+                        break;
+                    }
+
+                    SpilledMessage message = SpilledMessage.read(content);
+                    segment.lastSequence = Math.max(segment.lastSequence, message.getSequence());
+                    segment.unacknowledged++;
+                    replayed.add(message);
+                    position += HEADER + length;
+                }
+                if (position < mapped.limit()) {
+                    log.warn("Ignoring a torn record at the end of " + file);
+                }
+                segment.bytes = raf.length();
+            } finally {
+                raf.close();
+            }
+
+            bytes += segment.bytes;
+            lastSequence = Math.max(lastSequence, segment.lastSequence);
+            if (segment.unacknowledged > 0) {
+                segments.add(segment);
+            } else {
+                delete(segment);
+            }
+        }
+        if (!replayed.isEmpty()) {
+            log.info("Found " + replayed.size() + " messages to send again in the write-ahead log");
+        }
+    }
+
+    private static int crc(ByteBuffer content) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[content.remaining()];
+        content.duplicate().get(bytes);
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.queue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+import lombok.extern.slf4j.Slf4j;
+
+import static com.sumologic.logback.queue.CostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Buffer which keeps its newest elements in memory, up to its capacity, and moves the oldest
+ * ones to files once that is full, so that an outage of the endpoint longer than the memory can
+ * absorb does not lose them.
+ * <p>
+ * Spilled elements are appended to memory-mapped segment files of <tt>segmentSize</tt> bytes in
+ * <tt>directory</tt>. Once they would take more than <tt>maxDiskBytes</tt>, the oldest segment is
+ * dropped as a whole, its elements read back for the eviction listener. Elements are drained oldest first, from the files and then from memory;
+ * an element read back is a view of the mapped file, not a copy, and a segment file is deleted
+ * once everything in it has been drained. Files left over by a previous process are deleted.
+ * <p>
+ * Spilling is done by {@link #add} while the buffer is locked, so the producer which overflows
+ * the memory pays for serializing the oldest elements and writing them out, and the other
+ * producers wait meanwhile. Elements which are expensive to serialize, e.g. because they are
+ * only formatted then, are better not spilled.
+ */
+@Slf4j
+public class BufferWithDiskSpillover<T> extends BufferWithEviction<T> {
+
+    /**
+     * Writes elements to the mapped files and reads them back.
+     */
+    public static interface Serializer<T> {
+        /**
+         * Write <tt>e</tt> at the position of <tt>out</tt>, throwing <tt>BufferOverflowException</tt>
+         * if it does not fit. Called again on a fresh segment in that case.
+         */
+        public void write(T e, ByteBuffer out);
+
+        /**
+         * Return the element written into <tt>in</tt>, which holds exactly its bytes and may be
+         * kept by the element.
+         */
+        public T read(ByteBuffer in);
+    }
+
+    private static final String PREFIX = "sumo-spill-";
+    private static final String SUFFIX = ".seg";
+
+    private static final class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int writePosition = 0;
+        private int readPosition = 0;
+        private int count = 0;          // Records written
+        private int read = 0;           // Records read back, or dropped
+        private long bytes = 0;         // Of the records not read yet
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private final BufferWithFifoEviction<T> memory;
+    private final CostAssigner<T> costAssigner;
+    private final Serializer<T> serializer;
+    private final File directory;
+    private final int segmentSize;
+    private final long maxDiskBytes;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();  // Oldest first
+    private long nextSegment = 0;
+    private volatile int diskCount = 0;
+    private volatile long diskBytes = 0;
+
+    public BufferWithDiskSpillover(long capacity, CostAssigner<T> costAssigner, File directory, int segmentSize,
+                                   long maxDiskBytes, Serializer<T> serializer) throws IOException {
+        super(capacity);
+
+        if (serializer == null) {
+            throw new IllegalArgumentException("Serializer cannot be null");
+        }
+        if (segmentSize < 64) {
+            throw new IllegalArgumentException("Segment size must be at least 64");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spill directory " + directory);
+        }
+
+        this.memory = new BufferWithFifoEviction<T>(capacity, costAssigner);
+        this.costAssigner = costAssigner;
+        this.serializer = serializer;
+        this.directory = directory;
+        this.segmentSize = (int) Math.max(64, Math.min(segmentSize, maxDiskBytes));
+        this.maxDiskBytes = maxDiskBytes;
+
+        File[] stale = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        if (stale != null) {
+            for (File file : stale) {
+                if (!file.delete()) {
+                    log.warn("Could not delete spill file " + file);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setCapacity(long capacity) {
+        super.setCapacity(capacity);
+        memory.setCapacity(capacity);
+    }
+
+    /**
+     * Return how many elements are held in files.
+     */
+    public int diskSize() {
+        return diskCount;
+    }
+
+    @Override
+    protected synchronized T evict() {
+        return diskCount > 0 ? readNext() : memory.evict();
+    }
+
+    /**
+     * Make room in memory for an element with cost <tt>cost</tt>, by spilling the oldest ones.
+     *
+     * @param cost the desired cost to evict
+     * @return true if eviction was successful, false otherwise.
+     */
+    @Override
+    protected synchronized boolean evict(long cost) {
+        if (cost > getCapacity()) return false;
+
+        int numDropped = 0;
+        while (memory.cost() + cost > getCapacity()) {
+            T oldest = memory.evict();
+            if (oldest == null) {
+                break;
+            }
+            if (!spill(oldest)) {
+                dropped(oldest);
+                numDropped++;
+            }
+        }
+        evicted(numDropped);
+        return true;
+    }
+
+    // Append e to the newest segment, or to a new one if it does not fit.
+    private boolean spill(T e) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Segment segment = writableSegment(attempt > 0);
+            if (segment == null) {
+                return false;
+            }
+
+            ByteBuffer out = segment.buffer;
+            int start = segment.writePosition;
+            try {
+                out.position(start + 4);
+                serializer.write(e, out);
+            } catch (BufferOverflowException overflow) {
+                out.position(start);
+                if (start == 0) {
+                    // Too large for any segment
+                    return false;
+                }
+                continue;
+            }
+
+            int length = out.position() - start - 4;
+            out.putInt(start, length);
+            segment.writePosition = out.position();
+            segment.count++;
+            segment.bytes += length;
+            diskCount++;
+            diskBytes += length;
+            return true;
+        }
+        return false;
+    }
+
+    private Segment writableSegment(boolean full) {
+        Segment last = segments.peekLast();
+        if (last != null && !full && segmentSize - last.writePosition > 4) {
+            return last;
+        }
+
+        while (!segments.isEmpty() && (long) (segments.size() + 1) * segmentSize > maxDiskBytes) {
+            dropOldest();
+        }
+
+        File file = new File(directory, String.format("%s%016d%s", PREFIX, nextSegment++, SUFFIX));
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            // The mapping outlives the channel
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            Segment segment = new Segment(file, buffer);
+            segments.add(segment);
+            return segment;
+        } catch (IOException e) {
+            log.error("Unable to create spill file " + file, e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    log.warn("Could not close spill file " + file, e);
+                }
+            }
+        }
+    }
+
+    private void dropOldest() {
+        Segment segment = segments.poll();
+        int unread = segment.count - segment.read;
+        // Read back what is left, so that the listener gets to acknowledge it
+        for (int position = segment.readPosition, i = 0; i < unread; i++) {
+            int length = segment.buffer.getInt(position);
+            dropped(read(segment, position, length));
+            position += 4 + length;
+        }
+        diskCount -= unread;
+        diskBytes -= segment.bytes;
+        evicted(unread);
+        delete(segment);
+    }
+
+    private T read(Segment segment, int position, int length) {
+        ByteBuffer in = segment.buffer.duplicate();
+        in.limit(position + 4 + length);
+        in.position(position + 4);
+        return serializer.read(in.slice());
+    }
+
+    private T readNext() {
+        Segment segment = segments.peek();
+        while (segment.read == segment.count) {
+            segments.poll();
+            delete(segment);
+            segment = segments.peek();
+        }
+
+        int length = segment.buffer.getInt(segment.readPosition);
+        T e = read(segment, segment.readPosition, length);
+
+        segment.readPosition += 4 + length;
+        segment.read++;
+        segment.bytes -= length;
+        diskCount--;
+        diskBytes -= length;
+
+        // The newest segment may still be written to
+        if (segment.read == segment.count && segment != segments.peekLast()) {
+            segments.poll();
+            delete(segment);
+        }
+        return e;
+    }
+
+    private void delete(Segment segment) {
+        if (!segment.file.delete()) {
+            segment.file.deleteOnExit();
+        }
+    }
+
+    @Override
+    public int size() {
+        return diskCount + memory.size();
+    }
+
+    /**
+     * Return the cost of the elements in memory plus the bytes of those in files.
+     */
+    @Override
+    public long cost() {
+        return diskBytes + memory.cost();
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<T> collection, int maxElements) {
+        int elementsDrained = 0;
+        while (elementsDrained < maxElements && diskCount > 0) {
+            collection.add(readNext());
+            elementsDrained++;
+        }
+        if (elementsDrained < maxElements) {
+            elementsDrained += memory.drainTo(collection, maxElements - elementsDrained);
+        }
+        return elementsDrained;
+    }
+
+    @Override
+    public synchronized boolean add(T element) {
+        long eCost = costAssigner.cost(element);
+        if (memory.cost() + eCost > getCapacity() && !evict(eCost)) {
+            return false;
+        }
+        memory.add(element);
+
+        checkThreshold();
+        return true;
+    }
+}
@@ -26,6 +26,9 @@
 package com.sumologic.logback.queue;
 
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * A concurrent buffer with a maximum capacity that, upon reaching said capacity, evicts some
@@ -35,9 +38,34 @@ import java.util.Collection;
  * Date: 4/5/13
  * Time: 1:51 AM
  */
+@Slf4j
 public abstract class BufferWithEviction<Q> {
 
+    // Evictions are logged as a summary at most this often (ms), however many happen meanwhile
+    private static final long EVICTION_REPORT_INTERVAL = 10000;
+
+    /**
+     * Notified by producers once the buffer holds enough to be worth flushing.
+     */
+    public static interface ThresholdListener {
+        public void thresholdReached();
+    }
+
+    /**
+     * Handed every element dropped from the buffer, e.g. to give back the storage it holds.
+     */
+    public static interface EvictionListener<Q> {
+        public void evicted(Q element);
+    }
+
     private long capacity;
+    private volatile ThresholdListener thresholdListener;
+    private volatile EvictionListener<Q> evictionListener;
+    private volatile int sizeThreshold = Integer.MAX_VALUE;
+    private volatile long costThreshold = Long.MAX_VALUE;
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong unreportedCount = new AtomicLong();
+    private volatile long nextEvictionReport = 0;
 
     public BufferWithEviction(long capacity) {
         this.capacity = capacity;
@@ -51,11 +79,68 @@ public abstract class BufferWithEviction<Q> {
         this.capacity = capacity;
     }
 
+    /**
+     * Call <tt>listener</tt> after every insert which leaves at least <tt>size</tt> elements or
+     * <tt>cost</tt> in the buffer; 0 disables either bound.
+     */
+    public void setThresholdListener(int size, long cost, ThresholdListener listener) {
+        this.sizeThreshold = size > 0 ? size : Integer.MAX_VALUE;
+        this.costThreshold = cost > 0 ? cost : Long.MAX_VALUE;
+        this.thresholdListener = listener;
+    }
+
+    public void setEvictionListener(EvictionListener<Q> listener) {
+        this.evictionListener = listener;
+    }
+
+    // Subclasses call this with every element they drop, before counting them with evicted().
+    protected void dropped(Q element) {
+        EvictionListener<Q> listener = evictionListener;
+        if (listener != null) {
+            listener.evicted(element);
+        }
+    }
+
+    // Subclasses call this after a successful insert.
+    protected void checkThreshold() {
+        ThresholdListener listener = thresholdListener;
+        if (listener != null && (size() >= sizeThreshold || cost() >= costThreshold)) {
+            listener.thresholdReached();
+        }
+    }
+
+    // Subclasses call this after evicting elements, instead of logging each time.
+    protected void evicted(long count) {
+        if (count <= 0) {
+            return;
+        }
+        evictedCount.addAndGet(count);
+        unreportedCount.addAndGet(count);
+
+        long now = System.currentTimeMillis();
+        if (now >= nextEvictionReport) {
+            nextEvictionReport = now + EVICTION_REPORT_INTERVAL;
+            long unreported = unreportedCount.getAndSet(0);
+            if (unreported > 0) {
+                log.warn("Evicted " + unreported + " messages from buffer; "
+                        + evictedCount.get() + " so far");
+            }
+        }
+    }
+
+    /**
+     * Return how many elements were evicted to make room for others.
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
 
     protected abstract Q evict();
     protected abstract boolean evict(long cost);
     public abstract int size();
+    public abstract long cost();
     public abstract int drainTo(Collection<Q> collection);
+    public abstract int drainTo(Collection<Q> collection, int maxElements);
     public abstract boolean add(Q element);
 
 }
@@ -28,22 +28,41 @@ package com.sumologic.logback.queue;
 
 import java.util.Collection;
 
-import lombok.extern.slf4j.Slf4j;
-
 import static com.sumologic.logback.queue.CostBoundedConcurrentQueue.CostAssigner;
 
 /**
  * Buffer for one concurrent producer and one concurrent consumer which takes members of
  * the queue in batches.
  * <p>
+ * Elements are held in segments of up to a sixteenth of the capacity each. Once the buffer is
+ * full, the oldest segment is dropped as a whole, which leaves room for the next many inserts:
+ * a saturated buffer costs about the same per insert as one with room to spare.
+ * <p>
  * Author: Jose Muniz (jose@sumologic.com)
  * Date: 4/6/13
  * Time: 3:29 PM
  */
-@Slf4j
 public class BufferWithFifoEviction<T> extends BufferWithEviction<T> {
-    private CostBoundedConcurrentQueue<T> queue;
+
+    // Segments a full buffer is made of, roughly; eviction drops one at a time
+    private static final int SEGMENTS = 16;
+    // Most elements in one segment, whatever their cost
+    private static final int SEGMENT_SLOTS = 256;
+
+    private static final class Segment {
+        private Object[] elements = new Object[8];
+        private long[] costs = new long[8];
+        private int head = 0;
+        private int tail = 0;
+        private long cost = 0;
+        private Segment next;
+    }
+
     private CostAssigner<T> costAssigner;
+    private Segment first;      // Oldest
+    private Segment last;       // Being filled
+    private volatile int size = 0;
+    private volatile long cost = 0;
 
     public BufferWithFifoEviction(long capacity, CostAssigner<T> costAssigner) {
         super(capacity);
@@ -55,59 +74,131 @@ public class BufferWithFifoEviction<T> extends BufferWithEviction<T> {
             throw new IllegalArgumentException("Capacity must be at least 1");
         }
 
-        this.queue = new CostBoundedConcurrentQueue<T>(capacity, costAssigner);
         this.costAssigner = costAssigner;
     }
 
     @Override
-    protected T evict() {
-        return queue.poll();
+    @SuppressWarnings("unchecked")
+    protected synchronized T evict() {
+        Segment segment = first;
+        if (segment == null) {
+            return null;
+        }
+
+        T e = (T) segment.elements[segment.head];
+        long eCost = segment.costs[segment.head];
+        segment.elements[segment.head++] = null;
+        segment.cost -= eCost;
+        cost -= eCost;
+        size--;
+
+        if (segment.head == segment.tail) {
+            dropFirst();
+        }
+        return e;
     }
 
     /**
-     * Make room for inserting an element with cost <tt>cost</tt>
+     * Make room for inserting an element with cost <tt>cost</tt>, dropping the oldest segments
+     * whole.
      *
      * @param cost the desired cost to evict
      * @return true if eviction was successful, false otherwise.
      */
-    protected boolean evict(long cost) {
+    @SuppressWarnings("unchecked")
+    protected synchronized boolean evict(long cost) {
+        if (cost > getCapacity()) return false;
 
         int numEvicted = 0;
+        long targetCost = getCapacity() - cost;
+        while (this.cost > targetCost && first != null) {
+            Segment segment = first;
+            for (int i = segment.head; i < segment.tail; i++) {
+                dropped((T) segment.elements[i]);
+            }
+            numEvicted += segment.tail - segment.head;
+            size -= segment.tail - segment.head;
+            this.cost -= segment.cost;
+            dropFirst();
+        }
 
+        evicted(numEvicted);
+        return true;
+    }
 
-        if (cost > getCapacity()) return false;
-
-        long targetCost = getCapacity() - cost;
-        do {
-            numEvicted++;
-            evict();
-        } while (queue.cost() > targetCost);
+    private void dropFirst() {
+        first = first.next;
+        if (first == null) {
+            last = null;
+        }
+    }
 
-        if (numEvicted > 0) {
-            log.warn("Evicted " + numEvicted + " messages from buffer");
+    private void append(T element, long eCost) {
+        Segment segment = last;
+        if (segment == null || segment.cost >= segmentCost() || segment.tail == SEGMENT_SLOTS) {
+            segment = new Segment();
+            if (last == null) {
+                first = segment;
+            } else {
+                last.next = segment;
+            }
+            last = segment;
+        } else if (segment.tail == segment.elements.length) {
+            int length = Math.min(SEGMENT_SLOTS, segment.elements.length * 2);
+            Object[] elements = new Object[length];
+            long[] costs = new long[length];
+            System.arraycopy(segment.elements, 0, elements, 0, segment.tail);
+            System.arraycopy(segment.costs, 0, costs, 0, segment.tail);
+            segment.elements = elements;
+            segment.costs = costs;
         }
 
-        return true;
+        segment.elements[segment.tail] = element;
+        segment.costs[segment.tail++] = eCost;
+        segment.cost += eCost;
+        cost += eCost;
+        size++;
+    }
+
+    private long segmentCost() {
+        return Math.max(1, getCapacity() / SEGMENTS);
     }
 
     @Override
     public int size() {
-        return queue.size();
+        return size;
+    }
+
+    @Override
+    public long cost() {
+        return cost;
     }
 
     @Override
     public int drainTo(Collection<T> collection) {
-        return queue.drainTo(collection);
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<T> collection, int maxElements) {
+        int elementsDrained = 0;
+        while (elementsDrained < maxElements && first != null) {
+            collection.add(evict());
+            elementsDrained++;
+        }
+
+        return elementsDrained;
     }
 
     @Override
     synchronized public boolean add(T element) {
-        boolean wasSuccessful = queue.offer(element);
-        if (!wasSuccessful) {
-            evict(costAssigner.cost(element));
-            return queue.offer(element);
+        long eCost = costAssigner.cost(element);
+        if (cost + eCost > getCapacity() && !evict(eCost)) {
+            return false;
         }
+        append(element, eCost);
 
+        checkThreshold();
         return true;
     }
 }
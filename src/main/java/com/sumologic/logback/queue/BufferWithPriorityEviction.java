@@ -0,0 +1,207 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.queue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static com.sumologic.logback.queue.CostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Buffer which, once full, evicts its least important elements first, so that a flood of
+ * low-priority elements cannot push out the few which matter.
+ * <p>
+ * Every priority has its own FIFO lane. Room for a new element is made by evicting the oldest
+ * elements of the lowest non-empty lane, never from a lane of higher priority than the new
+ * element's: if that is not enough, the new element is the one dropped. Elements are drained in
+ * the order they were added, whatever their lane. Lanes are few, so adding, evicting and
+ * draining an element all take constant time.
+ */
+public class BufferWithPriorityEviction<T> extends BufferWithEviction<T> {
+
+    /**
+     * Ranks elements from 0, the first to go, to <tt>priorities - 1</tt>.
+     */
+    public static interface PriorityAssigner<T> {
+        public int priority(T e);
+    }
+
+    private static final class Node<T> {
+        final T element;
+        final long cost;
+        final long sequence;    // Order of insertion, across lanes
+
+        Node(T element, long cost, long sequence) {
+            this.element = element;
+            this.cost = cost;
+            this.sequence = sequence;
+        }
+    }
+
+    private final List<ArrayDeque<Node<T>>> lanes;
+    private final long[] laneCosts;
+    private final CostAssigner<T> costAssigner;
+    private final PriorityAssigner<T> priorityAssigner;
+
+    private long sequence = 0;
+    private volatile int size = 0;
+    private volatile long cost = 0;
+
+    public BufferWithPriorityEviction(long capacity, int priorities, CostAssigner<T> costAssigner,
+                                      PriorityAssigner<T> priorityAssigner) {
+        super(capacity);
+
+        if (costAssigner == null || priorityAssigner == null) {
+            throw new IllegalArgumentException("CostAssigner and PriorityAssigner cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        if (priorities <= 0) {
+            throw new IllegalArgumentException("There must be at least 1 priority");
+        }
+
+        this.lanes = new ArrayList<ArrayDeque<Node<T>>>(priorities);
+        this.laneCosts = new long[priorities];
+        for (int i = 0; i < priorities; i++) {
+            lanes.add(new ArrayDeque<Node<T>>());
+        }
+        this.costAssigner = costAssigner;
+        this.priorityAssigner = priorityAssigner;
+    }
+
+    @Override
+    protected synchronized T evict() {
+        for (int i = 0; i < lanes.size(); i++) {
+            if (!lanes.get(i).isEmpty()) {
+                return remove(i).element;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Make room for inserting an element with cost <tt>cost</tt>, from any lane.
+     *
+     * @param cost the desired cost to evict
+     * @return true if eviction was successful, false otherwise.
+     */
+    @Override
+    protected synchronized boolean evict(long cost) {
+        return evict(cost, lanes.size() - 1);
+    }
+
+    // Evict the oldest elements of the lowest lanes, up to maxPriority, until cost fits.
+    private boolean evict(long cost, int maxPriority) {
+        if (cost > getCapacity()) return false;
+
+        long targetCost = getCapacity() - cost;
+        long evictable = 0;
+        for (int i = 0; i <= maxPriority; i++) {
+            evictable += laneCosts[i];
+        }
+        if (this.cost - evictable > targetCost) {
+            // Only more important elements would make room; keep them.
+            return false;
+        }
+
+        int numEvicted = 0;
+        for (int i = 0; i <= maxPriority && this.cost > targetCost; i++) {
+            while (!lanes.get(i).isEmpty() && this.cost > targetCost) {
+                dropped(remove(i).element);
+                numEvicted++;
+            }
+        }
+
+        evicted(numEvicted);
+        return true;
+    }
+
+    private Node<T> remove(int priority) {
+        Node<T> node = lanes.get(priority).poll();
+        size--;
+        cost -= node.cost;
+        laneCosts[priority] -= node.cost;
+        return node;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long cost() {
+        return cost;
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<T> collection, int maxElements) {
+        int elementsDrained = 0;
+        while (elementsDrained < maxElements) {
+            // The oldest element is at the head of one of the lanes
+            int oldest = -1;
+            for (int i = 0; i < lanes.size(); i++) {
+                if (!lanes.get(i).isEmpty()
+                        && (oldest < 0 || lanes.get(i).peek().sequence < lanes.get(oldest).peek().sequence)) {
+                    oldest = i;
+                }
+            }
+            if (oldest < 0) {
+                break;
+            }
+            collection.add(remove(oldest).element);
+            elementsDrained++;
+        }
+        return elementsDrained;
+    }
+
+    @Override
+    public boolean add(T element) {
+        long elementCost = costAssigner.cost(element);
+        int priority = Math.max(0, Math.min(lanes.size() - 1, priorityAssigner.priority(element)));
+
+        synchronized (this) {
+            if (cost + elementCost > getCapacity() && !evict(elementCost, priority)) {
+                return false;
+            }
+            lanes.get(priority).add(new Node<T>(element, elementCost, sequence++));
+            size++;
+            cost += elementCost;
+            laneCosts[priority] += elementCost;
+        }
+
+        checkThreshold();
+        return true;
+    }
+}
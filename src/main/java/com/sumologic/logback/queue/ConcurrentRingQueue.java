@@ -0,0 +1,154 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue backed by a fixed ring of slots. Producers and consumers claim
+ * slots with a single CAS on their respective position counters; each slot carries a sequence
+ * number telling whether it is ready to be written or read, so neither side ever takes a monitor
+ * and no per-element node is allocated.
+ * <p>
+ * Any number of threads may call {@link #offer} and {@link #poll} concurrently. It implements a
+ * strict subset of the functionality of interface <tt>java.util.Queue</tt>.
+ */
+public class ConcurrentRingQueue<T> {
+
+    private final int mask;
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong enqueuePosition = new AtomicLong(0);
+    private final AtomicLong dequeuePosition = new AtomicLong(0);
+
+    /**
+     * @param slots the minimum number of slots; rounded up to the next power of two
+     */
+    public ConcurrentRingQueue(int slots) {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("Slots must be at least 1");
+        }
+        if (slots > (1 << 30)) {
+            throw new IllegalArgumentException("Slots cannot exceed 2^30");
+        }
+
+        int length = slots == 1 ? 1 : Integer.highestOneBit(slots - 1) << 1;
+        this.mask = length - 1;
+        this.elements = new AtomicReferenceArray<T>(length);
+        this.sequences = new AtomicLongArray(length);
+        for (int i = 0; i < length; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Return the number of slots in the ring.
+     * @return the slot count
+     */
+    public int slots() {
+        return mask + 1;
+    }
+
+    /**
+     * Return the number of elements in the queue. Elements whose slot has been claimed but not
+     * yet published are included.
+     * @return the count
+     */
+    public int size() {
+        long head = dequeuePosition.get();
+        long tail = enqueuePosition.get();
+        long size = tail - head;
+        if (size < 0) return 0;
+        return (int) Math.min(size, slots());
+    }
+
+    /**
+     * Inserts the specified element if a slot is free, returning true upon success and false if
+     * the ring is full.
+     *
+     * @param e Element to insert
+     * @return true if element was successfully inserted; false if the ring is full.
+     */
+    public boolean offer(T e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        long position = enqueuePosition.get();
+        int index;
+        for (;;) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) {
+                // The consumer has not released this slot yet.
+                return false;
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+
+        elements.lazySet(index, e);
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, or returns null if this queue is empty.
+     * @return The head of this queue
+     */
+    public T poll() {
+        long position = dequeuePosition.get();
+        int index;
+        for (;;) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = dequeuePosition.get();
+            } else if (difference < 0) {
+                // Nothing published in this slot yet.
+                return null;
+            } else {
+                position = dequeuePosition.get();
+            }
+        }
+
+        T e = elements.get(index);
+        elements.lazySet(index, null);
+        sequences.lazySet(index, position + mask + 1);
+        return e;
+    }
+}
@@ -91,6 +91,25 @@ public class CostBoundedConcurrentQueue<T> {
         return elementsDrained;
     }
 
+    /**
+     * Removes at most <tt>maxElements</tt> elements from the head of this queue and adds them to the
+     * given collection.
+     *
+     * @param collection Destination collection
+     * @param maxElements the maximum number of elements to transfer
+     * @return the number of elements transferred
+     */
+    public int drainTo(Collection<T> collection, int maxElements) {
+        int elementsDrained = 0;
+        T e;
+        while (elementsDrained < maxElements && (e = poll()) != null) {
+            collection.add(e);
+            elementsDrained++;
+        }
+
+        return elementsDrained;
+    }
+
     /**
      * Inserts the specified element into this queue if it is possible to do so immediately without
      * violating capacity restrictions, returning true upon success and false if no space is
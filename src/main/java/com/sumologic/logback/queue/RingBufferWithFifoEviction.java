@@ -0,0 +1,208 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.queue;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sumologic.logback.queue.CostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Lock-free alternative to {@link BufferWithFifoEviction} for many concurrent producers and one
+ * consumer which takes members of the queue in batches.
+ * <p>
+ * Slots are claimed on a {@link ConcurrentRingQueue} and the total cost is reserved with a CAS
+ * loop, so <tt>add</tt> never blocks. When the cost bound or the slot count is reached the
+ * producer evicts the oldest element itself, which is why the ring tolerates concurrent pollers.
+ * Each element keeps the cost charged for it, which is what its eviction gives back. A producer
+ * which finds nothing to evict, while the room it needs is still held by other inserts in
+ * flight, waits for them a little and then gives up on its element.
+ */
+public class RingBufferWithFifoEviction<T> extends BufferWithEviction<T> {
+    // How many times a producer yields to inserts in flight before giving up
+    private static final int MAX_YIELDS = 1000;
+
+    private static final class Slot<T> {
+        private final T element;
+        private final long cost;
+
+        Slot(T element, long cost) {
+            this.element = element;
+            this.cost = cost;
+        }
+    }
+
+    private ConcurrentRingQueue<Slot<T>> ring;
+    private CostAssigner<T> costAssigner;
+    private AtomicLong cost = new AtomicLong(0);
+
+    public RingBufferWithFifoEviction(long capacity, int slots, CostAssigner<T> costAssigner) {
+        super(capacity);
+
+        if (costAssigner == null) {
+            throw new IllegalArgumentException("CostAssigner cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+
+        this.ring = new ConcurrentRingQueue<Slot<T>>(slots);
+        this.costAssigner = costAssigner;
+    }
+
+    /**
+     * Return the sum of the costs of all the elements contained in the buffer, including
+     * the ones currently being inserted.
+     * @return the cost
+     */
+    @Override
+    public long cost() {
+        return cost.get();
+    }
+
+    @Override
+    protected T evict() {
+        Slot<T> slot = ring.poll();
+        if (slot == null) {
+            return null;
+        }
+        cost.addAndGet(-slot.cost);
+        return slot.element;
+    }
+
+    /**
+     * Make room for inserting an element with cost <tt>cost</tt>
+     *
+     * @param cost the desired cost to evict
+     * @return true if eviction was successful, false otherwise.
+     */
+    protected boolean evict(long cost) {
+        if (cost > getCapacity()) return false;
+
+        int numEvicted = 0;
+        int yields = 0;
+        long targetCost = getCapacity() - cost;
+        boolean made = true;
+        while (this.cost.get() > targetCost) {
+            T e = evict();
+            if (e == null) {
+                // Remaining cost belongs to inserts still in flight; their elements show up shortly.
+                if (++yields > MAX_YIELDS) {
+                    made = false;
+                    break;
+                }
+                Thread.yield();
+                continue;
+            }
+            dropped(e);
+            numEvicted++;
+        }
+
+        evicted(numEvicted);
+
+        // Room was made; the caller's reservation may still race with other producers for it.
+        return made;
+    }
+
+    @Override
+    public int size() {
+        return ring.size();
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection) {
+        int elementsDrained = 0;
+        T e;
+        while ((e = evict()) != null) {
+            collection.add(e);
+            elementsDrained++;
+        }
+
+        return elementsDrained;
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection, int maxElements) {
+        int elementsDrained = 0;
+        T e;
+        while (elementsDrained < maxElements && (e = evict()) != null) {
+            collection.add(e);
+            elementsDrained++;
+        }
+
+        return elementsDrained;
+    }
+
+    @Override
+    public boolean add(T element) {
+        long eCost = costAssigner.cost(element);
+        if (!reserve(eCost)) {
+            return false;
+        }
+
+        int numEvicted = 0;
+        int yields = 0;
+        Slot<T> slot = new Slot<T>(element, eCost);
+        while (!ring.offer(slot)) {
+            // Out of slots rather than out of budget; drop the oldest to make one.
+            T e = evict();
+            if (e != null) {
+                dropped(e);
+                numEvicted++;
+            } else if (++yields > MAX_YIELDS) {
+                cost.addAndGet(-eCost);
+                evicted(numEvicted);
+                return false;
+            } else {
+                Thread.yield();
+            }
+        }
+
+        evicted(numEvicted);
+
+        checkThreshold();
+        return true;
+    }
+
+    // Atomically check capacity and optimistically increase usage, evicting as needed.
+    private boolean reserve(long eCost) {
+        for (;;) {
+            long capacity = getCapacity();
+            if (eCost > capacity) {
+                return false;
+            }
+
+            long current = cost.get();
+            if (current + eCost <= capacity) {
+                if (cost.compareAndSet(current, current + eCost)) {
+                    return true;
+                }
+            } else if (!evict(eCost)) {
+                return false;
+            }
+        }
+    }
+}
@@ -28,15 +28,35 @@ package com.sumologic.logback;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.LayoutBase;
+import com.sumologic.logback.encoder.LayoutEventEncoder;
+import com.sumologic.logback.message.SourceHeaders;
+import com.sumologic.logback.message.StringMessage;
+import com.sumologic.logback.message.SumoMessage;
+import com.sumologic.logback.message.WriteAheadLog;
 import com.sumologic.logback.server.AggregatingHttpHandler;
 import com.sumologic.logback.server.MaterializedHttpRequest;
 import com.sumologic.logback.server.MockHttpServer;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.MarkerFactory;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * @author: Jose Muniz (jose@sumologic.com)
@@ -51,6 +71,8 @@ public class BufferedSumoLogicAppenderTest {
     private Logger loggerInTest;
     private BufferedSumoLogicAppender appender;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     private void setUpLogger(BufferedSumoLogicAppender appender) {
         loggerInTest = (Logger) LoggerFactory.getLogger("BufferedSumoLogicAppenderTest");
@@ -136,6 +158,577 @@ public class BufferedSumoLogicAppenderTest {
         assertEquals(handler.getExchanges().size(), 1);
     }
 
+    @Test
+    public void testFullBatchIsSentWithoutPolling() throws Exception {
+        // Accuracy is no longer used; the buffer wakes the flusher up as soon as a batch is full
+        setUpLogger(5, 10000, 5000);
+
+        for (int i = 0; i < 5; i ++) {
+            loggerInTest.info("info " + i);
+        }
+
+        Thread.sleep(500);
+        assertEquals(1, handler.getExchanges().size());
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(40);
+        appender.setMaxFlushInterval(10000);
+        appender.setCompression("gzip");
+        appender.setCompressionThreshold(100);
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 40; i ++) {
+            loggerInTest.info("info " + i);
+            expected.append("info ").append(i).append("\n");
+        }
+
+        Thread.sleep(500);
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("gzip", handler.getExchanges().get(0).getHeaders().getFirst("Content-Encoding"));
+        assertEquals(expected.toString(), handler.getExchanges().get(0).getBody());
+    }
+
+    @Test
+    public void testRetryAfterPausesSending() throws Exception {
+        handler.throttle(1, "1");
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(1);
+        appender.setMaxFlushInterval(10000);
+        appender.setRetryInterval(10);
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        loggerInTest.info("first");
+        Thread.sleep(300);
+        loggerInTest.info("second");
+        Thread.sleep(300);
+
+        // Both wait for the second Sumo asked for, although the retry interval is much shorter
+        assertEquals(1, handler.getThrottledCount());
+        assertEquals(0, handler.getExchanges().size());
+
+        Thread.sleep(1000);
+        assertEquals(2, handler.getExchanges().size());
+        assertEquals("first\n", handler.getExchanges().get(0).getBody());
+    }
+
+    @Test
+    public void testBacklogStaysBufferedWhileThrottled() throws Exception {
+        handler.throttle(1, "1");
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(6);
+        appender.setMaxMessagesPerRequest(1);
+        appender.setMaxFlushInterval(500);
+        appender.setRetryInterval(10);
+        // Far too small for the backlog, and no room for attempts wasted while throttled
+        appender.setMaxRetryQueueSizeBytes(10);
+        appender.setMaxRetryAttempts(2);
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        // One flush of six requests, throttled at the first one
+        for (int i = 0; i < 6; i++) {
+            loggerInTest.info("backlog" + i);
+        }
+        Thread.sleep(300);
+        assertEquals(1, handler.getThrottledCount());
+        assertEquals(0, handler.getExchanges().size());
+
+        Thread.sleep(2000);
+        Set<String> lines = new HashSet<String>();
+        for (MaterializedHttpRequest request : handler.getExchanges()) {
+            lines.addAll(Arrays.asList(request.getBody().split("\\n")));
+        }
+        assertEquals(6, lines.size());
+    }
+
+    @Test
+    public void testTooLargeBatchesAreSplit() throws Exception {
+        handler.rejectLargerThan(30);
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(10);
+        appender.setMaxFlushInterval(10000);
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        // 90 bytes, then both halves of 45 are rejected; quarters of 18 and 27 bytes get through
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            loggerInTest.info("message" + i);
+            expected.append("message").append(i).append("\n");
+        }
+        Thread.sleep(500);
+        assertEquals(3, handler.getRejectedCount());
+        assertEquals(4, handler.getExchanges().size());
+
+        // Later batches stay within the size learned
+        for (int i = 10; i < 20; i++) {
+            loggerInTest.info("message" + i);
+            expected.append("message").append(i).append("\n");
+        }
+        Thread.sleep(500);
+        assertEquals(3, handler.getRejectedCount());
+
+        StringBuilder received = new StringBuilder();
+        for (MaterializedHttpRequest exchange : handler.getExchanges()) {
+            received.append(exchange.getBody());
+        }
+        assertEquals(expected.toString(), received.toString());
+    }
+
+    @Test
+    public void testBatchesArePartitionedBySource() throws Exception {
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(6);
+        appender.setMaxFlushInterval(10000);
+        appender.setSourceCategory("default");
+        appender.setSourceCategoryKey("category");
+        appender.setFieldKeys("tenant");
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        loggerInTest.info("plain1");
+        MDC.put("category", "payments");
+        MDC.put("tenant", "acme");
+        loggerInTest.info("payments1");
+        loggerInTest.info("payments2");
+        MDC.clear();
+        loggerInTest.info(MarkerFactory.getMarker("category=audit"), "audit1");
+        loggerInTest.info("plain2");
+        loggerInTest.info(MarkerFactory.getMarker("category=audit"), "audit2");
+        Thread.sleep(500);
+
+        // One request per partition, in the order each was first seen
+        assertEquals(3, handler.getExchanges().size());
+        MaterializedHttpRequest plain = handler.getExchanges().get(0);
+        assertEquals("plain1\nplain2\n", plain.getBody());
+        assertEquals("default", plain.getHeaders().getFirst("X-Sumo-Category"));
+        assertEquals("sumo-logback-appender", plain.getHeaders().getFirst("X-Sumo-Name"));
+        assertEquals(null, plain.getHeaders().getFirst("X-Sumo-Fields"));
+
+        MaterializedHttpRequest payments = handler.getExchanges().get(1);
+        assertEquals("payments1\npayments2\n", payments.getBody());
+        assertEquals("payments", payments.getHeaders().getFirst("X-Sumo-Category"));
+        assertEquals("tenant=acme", payments.getHeaders().getFirst("X-Sumo-Fields"));
+
+        MaterializedHttpRequest audit = handler.getExchanges().get(2);
+        assertEquals("audit1\naudit2\n", audit.getBody());
+        assertEquals("audit", audit.getHeaders().getFirst("X-Sumo-Category"));
+    }
+
+    @Test
+    public void testSourceValuesCannotInjectHeaders() throws Exception {
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(1);
+        appender.setMaxFlushInterval(10000);
+        appender.setSourceCategoryKey("category");
+        appender.setFieldKeys("tenant,region");
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        MDC.put("category", "payments\r\nX-Sumo-Host: spoofed");
+        MDC.put("tenant", "acme,region=eu");
+        MDC.put("region", "us");
+        loggerInTest.info("injected");
+        MDC.clear();
+        Thread.sleep(500);
+
+        assertEquals(1, handler.getExchanges().size());
+        MaterializedHttpRequest request = handler.getExchanges().get(0);
+        assertEquals("payments__X-Sumo-Host: spoofed", request.getHeaders().getFirst("X-Sumo-Category"));
+        assertEquals(null, request.getHeaders().getFirst("X-Sumo-Host"));
+        assertEquals("tenant=acme_region_eu,region=us", request.getHeaders().getFirst("X-Sumo-Fields"));
+    }
+
+    @Test
+    public void testWriteAheadLogIsReplayedOnStart() throws Exception {
+        // Left behind by a process which died before sending it
+        File directory = folder.newFolder("wal");
+        SumoMessage unsent = new StringMessage("unsent\n");
+        unsent.setHeaders(new SourceHeaders("crashed", null, null, null));
+        new WriteAheadLog(directory, 1000, 100000).append(unsent);
+
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(1);
+        appender.setMaxFlushInterval(10000);
+        appender.setWalDirectory(directory.getPath());
+        appender.setWalSync("always");
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        loggerInTest.info("live");
+        Thread.sleep(500);
+
+        assertEquals(2, handler.getExchanges().size());
+        MaterializedHttpRequest replayed = handler.getExchanges().get(0);
+        assertEquals("unsent\n", replayed.getBody());
+        assertEquals("crashed", replayed.getHeaders().getFirst("X-Sumo-Name"));
+        assertEquals("live\n", handler.getExchanges().get(1).getBody());
+
+        // Both were acknowledged, so nothing is left to replay
+        assertEquals(0, new WriteAheadLog(directory, 1000, 100000).replay().size());
+    }
+
+    @Test
+    public void testEvictedMessagesAreAcknowledged() throws Exception {
+        File directory = folder.newFolder("wal");
+
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(100);
+        appender.setMaxFlushInterval(10000);
+        appender.setMaxQueueSizeBytes(30);
+        appender.setWalDirectory(directory.getPath());
+        // A segment per message, so that each can be deleted on its own
+        appender.setWalSegmentSize(1);
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        for (int i = 0; i < 10; i++) {
+            loggerInTest.info("message" + i);
+        }
+
+        // Only what is still buffered is left to replay
+        List<SumoMessage> replayed = new WriteAheadLog(directory, 1, 100000).replay();
+        assertEquals(3, replayed.size());
+        assertEquals("message9\n", replayed.get(2).toString());
+    }
+
+    @Test
+    public void testSpilledMessagesDroppedFromDiskAreAcknowledged() throws Exception {
+        File wal = folder.newFolder("wal");
+        File spill = folder.newFolder("spill");
+
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(1000);
+        appender.setMaxFlushInterval(100000);
+        appender.setMaxQueueSizeBytes(100);
+        appender.setSpillDirectory(spill.getPath());
+        appender.setSpillSegmentSize(64);
+        appender.setMaxSpillSizeBytes(256);
+        appender.setWalDirectory(wal.getPath());
+        appender.setWalSegmentSize(1);
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        // Far more than memory and disk hold together
+        for (int i = 0; i < 100; i++) {
+            loggerInTest.info(String.format("message%02d", i));
+        }
+        loggerInTest.detachAppender(appender);
+        appender.stop();
+
+        // The next process only replays what was still held, the newest messages
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(1);
+        appender.setMaxFlushInterval(10000);
+        appender.setWalDirectory(wal.getPath());
+        appender.setWalSegmentSize(1);
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+        Thread.sleep(500);
+
+        StringBuilder received = new StringBuilder();
+        for (MaterializedHttpRequest exchange : handler.getExchanges()) {
+            received.append(exchange.getBody());
+        }
+        String[] lines = received.toString().split("\n");
+        assertTrue(lines.length > 0 && lines.length < 30);
+        int first = 100 - lines.length;
+        for (int i = 0; i < lines.length; i++) {
+            assertEquals(String.format("message%02d", first + i), lines[i]);
+        }
+    }
+
+    @Test
+    public void testDeferredFormattingIgnoresWriteAheadLog() throws Exception {
+        File directory = folder.newFolder("wal");
+
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(1);
+        appender.setMaxFlushInterval(10000);
+        appender.setDeferredFormatting(true);
+        appender.setWalDirectory(directory.getPath());
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        loggerInTest.info("deferred");
+        Thread.sleep(500);
+
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("deferred\n", handler.getExchanges().get(0).getBody());
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void testOffHeapBuffer() throws Exception {
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(3);
+        appender.setMaxFlushInterval(10000);
+        appender.setOffHeapBufferSizeBytes(4096);
+        appender.setOffHeapBlockSize(16);
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        loggerInTest.info("a message longer than one block");
+        loggerInTest.info("short");
+        loggerInTest.info("another one spanning blocks");
+        Thread.sleep(500);
+
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("a message longer than one block\nshort\nanother one spanning blocks\n",
+                handler.getExchanges().get(0).getBody());
+    }
+
+    @Test
+    public void testInvalidRetryIntervalFallsBackToDefault() throws Exception {
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(1);
+        appender.setMaxFlushInterval(10000);
+        appender.setRetryInterval(0);
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        loggerInTest.info("still sent");
+        Thread.sleep(200);
+
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("still sent\n", handler.getExchanges().get(0).getBody());
+    }
+
+    @Test
+    public void testWarmupConnections() throws Exception {
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(1);
+        appender.setMaxFlushInterval(10000);
+        appender.setWarmupConnections(2);
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        Thread.sleep(300);
+        assertEquals(2, appender.getOpenedConnectionCount());
+
+        loggerInTest.info("first");
+        Thread.sleep(200);
+        loggerInTest.info("second");
+        Thread.sleep(200);
+
+        // Both requests went out on a warmed up connection
+        assertEquals(2, handler.getExchanges().size());
+        assertEquals(2, appender.getOpenedConnectionCount());
+    }
+
+    @Test
+    public void testConcurrentSendersPreserveOrder() throws Exception {
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(1);
+        appender.setMaxFlushInterval(10000);
+        appender.setSenderThreads(4);
+        appender.setPreserveOrder(true);
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            loggerInTest.info("message" + i);
+            expected.append("message").append(i).append("\n");
+        }
+        Thread.sleep(1000);
+
+        StringBuilder received = new StringBuilder();
+        for (MaterializedHttpRequest exchange : handler.getExchanges()) {
+            received.append(exchange.getBody());
+        }
+        assertEquals(expected.toString(), received.toString());
+    }
+
+    @Test
+    public void testAsyncTransport() throws Exception {
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(1);
+        appender.setMaxFlushInterval(10000);
+        appender.setTransport("async");
+        appender.setMaxInFlightRequests(4);
+        appender.setPreserveOrder(true);
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            loggerInTest.info("message" + i);
+            expected.append("message").append(i).append("\n");
+        }
+        Thread.sleep(1000);
+
+        StringBuilder received = new StringBuilder();
+        for (MaterializedHttpRequest exchange : handler.getExchanges()) {
+            received.append(exchange.getBody());
+        }
+        assertEquals(expected.toString(), received.toString());
+    }
+
+    @Test
+    public void testAsyncRecoversAfterUnavailableProbe() throws Exception {
+        handler.throttle(1, "1");
+        handler.unavailable(1);
+        appender = new BufferedSumoLogicAppender();
+        // Two endpoints, so that a 503 does not throttle the account
+        appender.setUrl(ENDPOINT_URL + "," + ENDPOINT_URL + "/other");
+        appender.setMessagesPerRequest(1);
+        appender.setMaxFlushInterval(10000);
+        appender.setRetryInterval(10);
+        appender.setTransport("async");
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        loggerInTest.info("first");
+        Thread.sleep(1500);
+        // The probe sent after the Retry-After got a 503
+        assertEquals(1, handler.getThrottledCount());
+        assertEquals(1, handler.getUnavailableCount());
+
+        loggerInTest.info("second");
+        Thread.sleep(1000);
+        Set<String> bodies = new HashSet<String>();
+        for (MaterializedHttpRequest exchange : handler.getExchanges()) {
+            bodies.add(exchange.getBody());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("first\n", "second\n")), bodies);
+    }
+
     @Test
     public void testBatchingByWindow() throws Exception {
         // Small window, ensure all messages get batched by time
@@ -166,6 +759,118 @@ public class BufferedSumoLogicAppenderTest {
     }
 
 
+    @Test
+    public void testEncoderMode() throws Exception {
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(3);
+        appender.setMaxFlushInterval(10000);
+        appender.setFlushingAccuracy(10);
+        appender.setChunkSize(8);
+
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(context);
+        layout.setPattern("%message%n");
+        layout.start();
+
+        LayoutEventEncoder<ILoggingEvent> encoder = new LayoutEventEncoder<ILoggingEvent>();
+        encoder.setLayout(layout);
+        encoder.start();
+
+        appender.setEncoder(encoder);
+        appender.start();
+        setUpLogger(appender);
+
+        loggerInTest.info("first message");
+        loggerInTest.info("second \u00e9\u20ac message");
+        loggerInTest.info("third");
+
+        Thread.sleep(200);
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("first message\nsecond \u00e9\u20ac message\nthird\n",
+                handler.getExchanges().get(0).getBody());
+    }
+
+
+    @Test
+    public void testDeferredFormattingIgnoresSpillDirectory() throws Exception {
+        final Set<String> formattingThreads = Collections.synchronizedSet(new HashSet<String>());
+        File spill = folder.newFolder("spill");
+
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(1000);
+        appender.setMaxFlushInterval(500);
+        appender.setMaxQueueSizeBytes(200);
+        appender.setSpillDirectory(spill.getPath());
+        appender.setDeferredFormatting(true);
+
+        LayoutBase<ILoggingEvent> layout = new LayoutBase<ILoggingEvent>() {
+            @Override
+            public String doLayout(ILoggingEvent event) {
+                formattingThreads.add(Thread.currentThread().getName());
+                return event.getFormattedMessage() + "\n";
+            }
+        };
+        layout.start();
+
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        // Well past what memory holds
+        for (int i = 0; i < 50; i++) {
+            loggerInTest.info("message {}", i);
+        }
+        assertFalse(formattingThreads.contains(Thread.currentThread().getName()));
+        assertEquals(0, spill.list().length);
+
+        Thread.sleep(1000);
+        assertFalse(handler.getExchanges().isEmpty());
+        assertFalse(formattingThreads.contains(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void testDeferredFormatting() throws Exception {
+        final Set<String> formattingThreads = Collections.synchronizedSet(new HashSet<String>());
+
+        appender = new BufferedSumoLogicAppender();
+        appender.setUrl(ENDPOINT_URL);
+        appender.setMessagesPerRequest(10);
+        appender.setMaxFlushInterval(10000);
+        appender.setFlushingAccuracy(10);
+        appender.setDeferredFormatting(true);
+        appender.setFormatterThreads(2);
+
+        LayoutBase<ILoggingEvent> layout = new LayoutBase<ILoggingEvent>() {
+            @Override
+            public String doLayout(ILoggingEvent event) {
+                formattingThreads.add(Thread.currentThread().getName());
+                return event.getFormattedMessage() + "\n";
+            }
+        };
+        layout.start();
+
+        appender.setLayout(layout);
+        appender.start();
+        setUpLogger(appender);
+
+        for (int i = 0; i < 10; i++) {
+            loggerInTest.info("message {}", i);
+        }
+
+        Thread.sleep(200);
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("message 0\nmessage 1\nmessage 2\nmessage 3\nmessage 4\n" +
+                "message 5\nmessage 6\nmessage 7\nmessage 8\nmessage 9\n",
+                handler.getExchanges().get(0).getBody());
+        assertFalse(formattingThreads.isEmpty());
+        assertFalse(formattingThreads.contains(Thread.currentThread().getName()));
+    }
+
+
     @Test
     // Start with an appender without its URL set. THEN set the property and
     // make sure everything's still there.
@@ -36,6 +36,7 @@ import org.junit.Test;
 import org.slf4j.LoggerFactory;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 public class SumoLogicAppenderTest {
 
@@ -45,12 +46,13 @@ public class SumoLogicAppenderTest {
     private MockHttpServer server;
     private AggregatingHttpHandler handler;
     private Logger loggerInTest;
+    private SumoLogicAppender sla;
 
 
-    private void setUpLogger() {
+    private void setUpLogger(SumoLogicAppender sla) {
         LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
 
-        SumoLogicAppender sla = new SumoLogicAppender();
+        this.sla = sla;
         sla.setUrl(ENDPOINT_URL);
         // TODO: Shouldn't there be a default layout?
         PatternLayout layout = new PatternLayout();
@@ -74,11 +76,12 @@ public class SumoLogicAppenderTest {
 
         server.start();
 
-        setUpLogger();
+        setUpLogger(new SumoLogicAppender());
     }
 
     @After
     public void tearDown() throws Exception {
+        sla.stop();
         server.stop();
     }
 
@@ -102,4 +105,98 @@ public class SumoLogicAppenderTest {
 
         assertEquals(numMessages, handler.getExchanges().size());
     }
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+
+        int numMessages = 10;
+        for (int i = 0; i < numMessages; i ++) {
+            loggerInTest.info("info " + i);
+        }
+
+        // Every request after the first goes out on the same keep-alive connection
+        assertEquals(numMessages, sla.getRequestCount());
+        assertEquals(numMessages - 1, sla.getReusedConnectionCount());
+    }
+
+    @Test
+    public void testAsyncDoesNotWaitForTheEndpoint() throws Exception {
+        handler.delay(100);
+        SumoLogicAppender async = new SumoLogicAppender();
+        async.setAsync(true);
+        async.setAsyncWorkers(2);
+        setUpLogger(async);
+
+        long start = System.currentTimeMillis();
+        int numMessages = 10;
+        for (int i = 0; i < numMessages; i ++) {
+            loggerInTest.info("info " + i);
+        }
+        assertTrue(System.currentTimeMillis() - start < 100);
+
+        // One request per event, sent by the workers; the mock server answers one at a time
+        Thread.sleep(1500);
+        assertEquals(numMessages, handler.getExchanges().size());
+        assertEquals(0, async.getDroppedCount());
+    }
+
+    @Test
+    public void testAsyncDropsWhenQueueIsFull() throws Exception {
+        handler.delay(200);
+        SumoLogicAppender async = new SumoLogicAppender();
+        async.setAsync(true);
+        async.setAsyncWorkers(1);
+        async.setAsyncQueueSize(2);
+        setUpLogger(async);
+
+        int numMessages = 10;
+        for (int i = 0; i < numMessages; i ++) {
+            loggerInTest.info("info " + i);
+        }
+
+        // One in flight and two queued at most; the rest is dropped
+        assertTrue(async.getDroppedCount() >= numMessages - 3);
+        Thread.sleep(1000);
+        assertEquals(numMessages, handler.getExchanges().size() + async.getDroppedCount());
+    }
+
+    @Test
+    public void testBlockedCallersWaitSideBySide() throws Exception {
+        handler.delay(2000);
+        SumoLogicAppender async = new SumoLogicAppender();
+        async.setAsync(true);
+        async.setAsyncWorkers(1);
+        async.setAsyncQueueSize(1);
+        async.setOverflowPolicy("block");
+        async.setBlockTimeout(500);
+        setUpLogger(async);
+
+        // One in flight and one queued, so every caller after that waits for room
+        loggerInTest.info("in flight");
+        Thread.sleep(100);
+        loggerInTest.info("queued");
+
+        int numCallers = 4;
+        Thread[] callers = new Thread[numCallers];
+        for (int i = 0; i < numCallers; i ++) {
+            final int caller = i;
+            callers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loggerInTest.info("blocked " + caller);
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        for (Thread caller : callers) {
+            caller.start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+
+        // Each caller gives up after its own timeout instead of waiting out the others' in turn
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertEquals(numCallers, async.getDroppedCount());
+    }
 }
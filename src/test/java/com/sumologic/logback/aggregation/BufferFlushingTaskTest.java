@@ -34,6 +34,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author: Jose Muniz (jose@sumologic.com)
@@ -101,6 +102,315 @@ public class BufferFlushingTaskTest {
     }
 
 
+    private BufferFlushingTask<String, List<String>> limitedTask(
+            BufferWithFifoEviction<String> queue, final long maxMessages, final long maxBytes,
+            final List<List<String>> requests) {
+        return new BufferFlushingTask<String, List<String>>(queue) {
+
+            @Override
+            protected long getMaxFlushInterval() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected long getMessagesPerRequest() {
+                return 1;
+            }
+
+            @Override
+            protected String getName() {
+                return "No-name";
+            }
+
+            @Override
+            protected long getMaxMessagesPerRequest() {
+                return maxMessages;
+            }
+
+            @Override
+            protected long getMaxBytesPerRequest() {
+                return maxBytes;
+            }
+
+            @Override
+            protected long sizeOf(String message) {
+                return message.length();
+            }
+
+            @Override
+            protected List<String> aggregate(List<String> messages) {
+                return messages;
+            }
+
+            @Override
+            protected void sendOut(List<String> body, String name) {
+                requests.add(body);
+            }
+        };
+    }
+
+    @Test
+    public void testSplitByBytes() throws Exception {
+        List<List<String>> requests = new ArrayList<List<String>>();
+        BufferWithFifoEviction<String> queue = new BufferWithFifoEviction<String>(1000, sizeElements);
+        BufferFlushingTask<String, List<String>> task = limitedTask(queue, 0, 10, requests);
+
+        queue.add("msg1");
+        queue.add("msg2");
+        queue.add("msg3");
+        queue.add("a-much-longer-message");
+        queue.add("msg5");
+
+        task.run();
+        assertEquals(Arrays.asList(
+                Arrays.asList("msg1", "msg2"),
+                Arrays.asList("msg3"),
+                Arrays.asList("a-much-longer-message"),
+                Arrays.asList("msg5")), requests);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testSplitByMessages() throws Exception {
+        List<List<String>> requests = new ArrayList<List<String>>();
+        BufferWithFifoEviction<String> queue = new BufferWithFifoEviction<String>(100000, sizeElements);
+        BufferFlushingTask<String, List<String>> task = limitedTask(queue, 300, 0, requests);
+
+        for (int i = 0; i < 1000; i++) {
+            queue.add("msg" + i);
+        }
+
+        task.run();
+        assertEquals(4, requests.size());
+        assertEquals(300, requests.get(0).size());
+        assertEquals(100, requests.get(3).size());
+        assertEquals("msg0", requests.get(0).get(0));
+        assertEquals("msg999", requests.get(3).get(99));
+    }
+
+    @Test
+    public void testPartitionsAreSentApart() throws Exception {
+        final List<List<String>> requests = new ArrayList<List<String>>();
+        BufferWithFifoEviction<String> queue = new BufferWithFifoEviction<String>(1000, sizeElements);
+        BufferFlushingTask<String, List<String>> task = new BufferFlushingTask<String, List<String>>(queue) {
+
+            @Override
+            protected long getMaxFlushInterval() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected long getMessagesPerRequest() {
+                return 1;
+            }
+
+            @Override
+            protected String getName() {
+                return "No-name";
+            }
+
+            @Override
+            protected long getMaxMessagesPerRequest() {
+                return 2;
+            }
+
+            @Override
+            protected Object partitionOf(String message) {
+                return message.charAt(0);
+            }
+
+            @Override
+            protected List<String> aggregate(List<String> messages) {
+                return messages;
+            }
+
+            @Override
+            protected void sendOut(List<String> body, String name) {
+                requests.add(body);
+            }
+        };
+
+        queue.add("a1");
+        queue.add("b1");
+        queue.add("a2");
+        queue.add("c1");
+        queue.add("a3");
+        queue.add("b2");
+
+        task.run();
+        assertEquals(Arrays.asList(
+                Arrays.asList("a1", "a2"),
+                Arrays.asList("b1", "b2"),
+                Arrays.asList("c1"),
+                Arrays.asList("a3")), requests);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testFewMessagesAreSetAside() throws Exception {
+        final List<List<String>> requests = new ArrayList<List<String>>();
+        final List<Integer> buffered = new ArrayList<Integer>();
+        final BufferWithFifoEviction<String> queue = new BufferWithFifoEviction<String>(100000, sizeElements);
+        BufferFlushingTask<String, List<String>> task = new BufferFlushingTask<String, List<String>>(queue) {
+
+            @Override
+            protected long getMaxFlushInterval() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected long getMessagesPerRequest() {
+                return 1;
+            }
+
+            @Override
+            protected String getName() {
+                return "No-name";
+            }
+
+            @Override
+            protected Object partitionOf(String message) {
+                return message.charAt(0);
+            }
+
+            @Override
+            protected List<String> aggregate(List<String> messages) {
+                return messages;
+            }
+
+            @Override
+            protected void sendOut(List<String> body, String name) {
+                requests.add(body);
+                buffered.add(queue.size());
+            }
+        };
+
+        queue.add("a1");
+        for (int i = 0; i < 5000; i++) {
+            queue.add("b" + i);
+        }
+        queue.add("a2");
+
+        task.run();
+        // The first request did not wait for a2 at the far end of the buffer
+        assertEquals(Arrays.asList("a1"), requests.get(0));
+        assertTrue(buffered.get(0) > 3000);
+        int sent = 0;
+        for (List<String> request : requests) {
+            sent += request.size();
+        }
+        assertEquals(5002, sent);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testPendingMessagesGoBackToTheBuffer() throws Exception {
+        final List<List<String>> requests = new ArrayList<List<String>>();
+        BufferWithFifoEviction<String> queue = new BufferWithFifoEviction<String>(1000, sizeElements);
+        BufferFlushingTask<String, List<String>> task = new BufferFlushingTask<String, List<String>>(queue) {
+
+            @Override
+            protected long getMaxFlushInterval() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected long getMessagesPerRequest() {
+                return 1;
+            }
+
+            @Override
+            protected String getName() {
+                return "No-name";
+            }
+
+            @Override
+            protected Object partitionOf(String message) {
+                return message.charAt(0);
+            }
+
+            @Override
+            protected List<String> aggregate(List<String> messages) {
+                return messages;
+            }
+
+            @Override
+            protected void sendOut(List<String> body, String name) {
+                // Stopped while sending the first request
+                requests.add(body);
+                throw new IllegalStateException("stopped");
+            }
+        };
+
+        queue.add("a1");
+        queue.add("b1");
+        queue.add("a2");
+        queue.add("c1");
+
+        task.run();
+        assertEquals(Arrays.asList(Arrays.asList("a1", "a2")), requests);
+        assertEquals(0, queue.size());
+
+        task.requeuePending();
+        List<String> left = new ArrayList<String>();
+        queue.drainTo(left);
+        assertEquals(Arrays.asList("b1", "c1"), left);
+    }
+
+    @Test
+    public void testMessagesWithoutRoomAreDiscarded() throws Exception {
+        final List<String> discarded = new ArrayList<String>();
+        BufferWithFifoEviction<String> queue = new BufferWithFifoEviction<String>(1000, sizeElements);
+        BufferFlushingTask<String, List<String>> task = new BufferFlushingTask<String, List<String>>(queue) {
+
+            @Override
+            protected long getMaxFlushInterval() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected long getMessagesPerRequest() {
+                return 1;
+            }
+
+            @Override
+            protected String getName() {
+                return "No-name";
+            }
+
+            @Override
+            protected Object partitionOf(String message) {
+                return message.charAt(0);
+            }
+
+            @Override
+            protected List<String> aggregate(List<String> messages) {
+                return messages;
+            }
+
+            @Override
+            protected void sendOut(List<String> body, String name) {
+                throw new IllegalStateException("stopped");
+            }
+
+            @Override
+            protected void discard(String message) {
+                discarded.add(message);
+            }
+        };
+
+        queue.add("a1");
+        queue.add("b1");
+        queue.add("a2");
+        task.run();
+
+        // Shrunk meanwhile, too small for what comes back
+        queue.setCapacity(1);
+        task.requeuePending();
+        assertEquals(Arrays.asList("b1"), discarded);
+        assertEquals(0, queue.size());
+    }
+
     @Test
     public void testFlushByDate() throws Exception {
 
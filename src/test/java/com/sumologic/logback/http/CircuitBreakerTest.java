@@ -0,0 +1,96 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testClosedLetsEverythingThrough() {
+        CircuitBreaker breaker = new CircuitBreaker(100, 1000);
+        assertTrue(breaker.tryAcquire(0));
+        assertTrue(breaker.tryAcquire(0));
+        assertEquals(0, breaker.millisUntilAvailable(0));
+    }
+
+    @Test
+    public void testRetryAfterIsHonoured() {
+        CircuitBreaker breaker = new CircuitBreaker(100, 10000);
+        breaker.throttled(2000, 0);
+
+        long pause = breaker.millisUntilAvailable(0);
+        assertTrue(pause >= 2000 && pause <= 2200);
+        assertFalse(breaker.tryAcquire(1999));
+        assertFalse(breaker.isClosed());
+    }
+
+    @Test
+    public void testLongRetryAfterIsNotCapped() {
+        CircuitBreaker breaker = new CircuitBreaker(100, 1000);
+        breaker.throttled(5000, 0);
+
+        assertFalse(breaker.tryAcquire(4999));
+        assertTrue(breaker.millisUntilAvailable(0) >= 5000);
+    }
+
+    @Test
+    public void testSingleProbeWhenHalfOpen() {
+        CircuitBreaker breaker = new CircuitBreaker(100, 1000);
+        breaker.throttled(-1, 0);
+
+        assertTrue(breaker.tryAcquire(200));
+        assertFalse(breaker.tryAcquire(200));
+        assertTrue(breaker.millisUntilAvailable(200) > 0);
+
+        breaker.succeeded();
+        assertTrue(breaker.isClosed());
+        assertTrue(breaker.tryAcquire(200));
+    }
+
+    @Test
+    public void testBackoffDoublesWhileThrottled() {
+        CircuitBreaker breaker = new CircuitBreaker(100, 300);
+        long now = 0;
+        long[] backoffs = {100, 200, 300, 300};
+        for (long backoff : backoffs) {
+            breaker.throttled(-1, now);
+            long pause = breaker.millisUntilAvailable(now);
+            assertTrue(pause >= backoff && pause <= backoff + backoff / 10);
+
+            now += pause;
+            assertTrue(breaker.tryAcquire(now));
+        }
+
+        // A probe failing without an answer opens the breaker again
+        breaker.failed(now);
+        assertFalse(breaker.tryAcquire(now));
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.http;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompressingEntityTest {
+
+    private static final String BODY;
+
+    static {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            body.append("{\"level\":\"INFO\",\"message\":\"order ").append(i).append(" placed\"}\n");
+        }
+        BODY = body.toString();
+    }
+
+    private CompressingEntity entity(String encoding) {
+        return new CompressingEntity(new StringEntity(BODY, ContentType.APPLICATION_JSON), encoding);
+    }
+
+    private byte[] write(CompressingEntity entity) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        CompressingEntity entity = entity(CompressingEntity.GZIP);
+        byte[] compressed = write(entity);
+
+        assertEquals("gzip", entity.getContentEncoding().getValue());
+        assertEquals(-1, entity.getContentLength());
+        assertTrue(compressed.length < BODY.length() / 5);
+        assertEquals(BODY, read(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        CompressingEntity entity = entity(CompressingEntity.DEFLATE);
+        byte[] compressed = write(entity);
+
+        assertEquals("deflate", entity.getContentEncoding().getValue());
+        assertTrue(compressed.length < BODY.length() / 5);
+        assertEquals(BODY, read(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void testRepeatable() throws Exception {
+        CompressingEntity entity = entity(CompressingEntity.GZIP);
+        assertTrue(entity.isRepeatable());
+        assertEquals(BODY, read(new GZIPInputStream(new ByteArrayInputStream(write(entity)))));
+        assertEquals(BODY, read(new GZIPInputStream(entity.getContent())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownEncoding() {
+        entity("br");
+    }
+}
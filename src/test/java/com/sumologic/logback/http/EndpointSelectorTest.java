@@ -0,0 +1,98 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.http;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EndpointSelectorTest {
+
+    private static final String A = "https://a.example.com/receiver";
+    private static final String B = "https://b.example.com/receiver";
+
+    @Test
+    public void testRoundRobin() {
+        EndpointSelector selector = new EndpointSelector(Arrays.asList(A, B), EndpointSelector.ROUND_ROBIN);
+        assertEquals(A, selector.select(0).getUrl());
+        assertEquals(B, selector.select(0).getUrl());
+        assertEquals(A, selector.select(0).getUrl());
+    }
+
+    @Test
+    public void testFailoverAndRecovery() {
+        EndpointSelector selector = new EndpointSelector(Arrays.asList(A, B), EndpointSelector.ROUND_ROBIN);
+        selector.configure(2, 1000);
+        EndpointSelector.Endpoint a = selector.getEndpoints().get(0);
+
+        selector.failed(a, 0);
+        assertEquals(A, selector.select(0).getUrl());
+        selector.failed(a, 0);
+
+        // Quarantined: everything goes to B until the quarantine is over
+        assertEquals(B, selector.select(10).getUrl());
+        assertEquals(B, selector.select(10).getUrl());
+        assertEquals(B, selector.select(1000).getUrl());
+        assertEquals(A, selector.select(1000).getUrl());
+    }
+
+    @Test
+    public void testAllQuarantined() {
+        EndpointSelector selector = new EndpointSelector(Arrays.asList(A, B), EndpointSelector.ROUND_ROBIN);
+        selector.configure(1, 1000);
+        selector.failed(selector.getEndpoints().get(1), 0);
+        selector.failed(selector.getEndpoints().get(0), 500);
+
+        // B comes back first
+        assertEquals(B, selector.select(600).getUrl());
+        assertEquals(B, selector.select(600).getUrl());
+    }
+
+    @Test
+    public void testLeastLatency() {
+        EndpointSelector selector = new EndpointSelector(Arrays.asList(A, B), EndpointSelector.LEAST_LATENCY);
+        selector.succeeded(selector.getEndpoints().get(0), 200);
+        selector.succeeded(selector.getEndpoints().get(1), 50);
+        assertEquals(B, selector.select(0).getUrl());
+        assertEquals(B, selector.select(0).getUrl());
+
+        // A few slow answers move B behind A
+        for (int i = 0; i < 10; i++) {
+            selector.succeeded(selector.getEndpoints().get(1), 500);
+        }
+        assertEquals(A, selector.select(0).getUrl());
+    }
+
+    @Test
+    public void testNoEndpoint() {
+        EndpointSelector selector = new EndpointSelector(EndpointSelector.parseUrls(" , "), null);
+        assertNull(selector.select(0));
+        assertEquals(Arrays.asList(A, B), EndpointSelector.parseUrls(A + ", " + B));
+    }
+}
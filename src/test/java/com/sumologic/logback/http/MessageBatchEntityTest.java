@@ -0,0 +1,105 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.http;
+
+import com.sumologic.logback.message.StringMessage;
+import com.sumologic.logback.message.SumoMessage;
+import org.apache.http.nio.ContentEncoder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageBatchEntityTest {
+
+    // Takes at most a few bytes per write, like a connection that keeps filling up.
+    private static class TrickleEncoder implements ContentEncoder {
+
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private boolean completed;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = Math.min(7, src.remaining());
+            for (int i = 0; i < n; i++) {
+                written.write(src.get());
+            }
+            return n;
+        }
+
+        @Override
+        public void complete() {
+            completed = true;
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return completed;
+        }
+    }
+
+    private MessageBatchEntity entity() {
+        List<SumoMessage> messages = new ArrayList<SumoMessage>();
+        for (int i = 0; i < 10; i++) {
+            messages.add(new StringMessage("{\"message\":\"order " + i + " placed\"}\n"));
+        }
+        return new MessageBatchEntity(messages);
+    }
+
+    private String produce(MessageBatchEntity entity) throws IOException {
+        TrickleEncoder encoder = new TrickleEncoder();
+        while (!encoder.isCompleted()) {
+            entity.produceContent(encoder, null);
+        }
+        return encoder.written.toString("UTF-8");
+    }
+
+    @Test
+    public void testProducedContentMatchesWrittenContent() throws Exception {
+        MessageBatchEntity entity = entity();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+
+        String produced = produce(entity);
+        assertEquals(out.toString("UTF-8"), produced);
+        assertEquals(entity.getContentLength(), produced.length());
+    }
+
+    @Test
+    public void testProducesAgainAfterClose() throws Exception {
+        MessageBatchEntity entity = entity();
+        assertTrue(entity.isRepeatable());
+        String first = produce(entity);
+        entity.close();
+        assertEquals(first, produce(entity));
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.http;
+
+import com.sumologic.logback.message.SourceHeaders;
+import com.sumologic.logback.message.StringMessage;
+import com.sumologic.logback.message.SumoMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RetryQueueTest {
+
+    private static final SourceHeaders HEADERS = new SourceHeaders("name", null, null, null);
+
+    private MessageBatchEntity batch(String text) {
+        return new MessageBatchEntity(Collections.<SumoMessage>singletonList(new StringMessage(text)));
+    }
+
+    @Test
+    public void testExponentialBackoffWithJitter() {
+        RetryQueue queue = new RetryQueue(1000, 100, 350, 0, 0);
+        MessageBatchEntity body = batch("message");
+        queue.add(body, HEADERS, 0);
+
+        // 100, 200, then capped at 350; each shortened by up to half
+        long[] delays = {100, 200, 350, 350};
+        long now = 0;
+        for (long delay : delays) {
+            long wait = queue.millisUntilNextAttempt(now);
+            assertTrue(wait >= delay / 2 && wait <= delay);
+            assertNull(queue.pollDue(now + wait - 1));
+
+            now += wait;
+            RetryQueue.Entry entry = queue.pollDue(now);
+            assertSame(body, entry.getBody());
+            queue.failed(entry, now);
+        }
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testMaxAttempts() {
+        RetryQueue queue = new RetryQueue(1000, 10, 10, 3, 0);
+        queue.add(batch("message"), HEADERS, 0);
+
+        queue.failed(queue.pollDue(100), 100);
+        assertEquals(1, queue.size());
+        queue.failed(queue.pollDue(200), 200);
+        assertEquals(0, queue.size());
+        assertEquals(Long.MAX_VALUE, queue.millisUntilNextAttempt(200));
+    }
+
+    @Test
+    public void testMaxAge() {
+        RetryQueue queue = new RetryQueue(1000, 10, 10, 0, 1000);
+        queue.add(batch("message"), HEADERS, 0);
+
+        queue.failed(queue.pollDue(500), 500);
+        assertEquals(1, queue.size());
+        queue.failed(queue.pollDue(1000), 1000);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testOldestDroppedWhenFull() {
+        RetryQueue queue = new RetryQueue(11, 10, 10, 0, 0);
+        queue.add(batch("first"), HEADERS, 0);
+        queue.add(batch("second"), HEADERS, 1);
+        queue.add(batch("third"), HEADERS, 2);
+
+        assertEquals(2, queue.size());
+        assertEquals("second", ((StringMessage) queue.pollDue(100).getBody().getMessages().get(0)).getText());
+        assertEquals("third", ((StringMessage) queue.pollDue(100).getBody().getMessages().get(0)).getText());
+    }
+
+    @Test
+    public void testBatchesHandedBackStayWithinCapacity() {
+        final List<String> released = new ArrayList<String>();
+        RetryQueue queue = new RetryQueue(11, 10, 10, 0, 0);
+        queue.add(releaseCounting("first", released), HEADERS, 0);
+        queue.add(releaseCounting("second", released), HEADERS, 1);
+
+        // Room taken by other batches while the oldest are out for another attempt
+        RetryQueue.Entry first = queue.pollDue(100);
+        queue.add(batch("third"), HEADERS, 100);
+        queue.requeue(first);
+        RetryQueue.Entry second = queue.pollDue(200);
+        queue.add(batch("fourth"), HEADERS, 200);
+        queue.failed(second, 200);
+
+        assertEquals(Arrays.asList("first", "second"), released);
+        assertEquals(2, queue.size());
+        assertEquals("third", ((StringMessage) queue.pollDue(1000).getBody().getMessages().get(0)).getText());
+        assertEquals("fourth", ((StringMessage) queue.pollDue(1000).getBody().getMessages().get(0)).getText());
+    }
+
+    private MessageBatchEntity releaseCounting(final String text, final List<String> released) {
+        return new MessageBatchEntity(Collections.<SumoMessage>singletonList(new StringMessage(text) {
+            @Override
+            public void release() {
+                released.add(text);
+            }
+        }));
+    }
+}
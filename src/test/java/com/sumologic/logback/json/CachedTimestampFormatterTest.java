@@ -0,0 +1,72 @@
+package com.sumologic.logback.json;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+public class CachedTimestampFormatterTest {
+
+    private static void assertSameAsSimpleDateFormat(String pattern, String timeZoneId, long... timestamps) {
+        CachedTimestampFormatter cached = new CachedTimestampFormatter(pattern, timeZoneId);
+        SimpleDateFormat reference = new SimpleDateFormat(pattern);
+        if (timeZoneId != null) {
+            reference.setTimeZone(TimeZone.getTimeZone(timeZoneId));
+        }
+
+        for (long timestamp : timestamps) {
+            assertEquals(pattern + " @ " + timestamp,
+                    reference.format(new Date(timestamp)), cached.format(timestamp));
+        }
+    }
+
+    private static long[] sequence(long start, int count, long step) {
+        long[] timestamps = new long[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = start + i * step;
+        }
+        return timestamps;
+    }
+
+    @Test
+    public void testSumoPatternWithinAndAcrossSeconds() {
+        assertSameAsSimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss.SSS' 'Z", null,
+                sequence(1459468799000L, 3000, 1));
+    }
+
+    @Test
+    public void testOutOfOrderTimestamps() {
+        long[] timestamps = new long[2000];
+        Random random = new Random(42);
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = 1459468800000L + random.nextInt(5000);
+        }
+        assertSameAsSimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss.SSS' 'Z", "UTC", timestamps);
+    }
+
+    @Test
+    public void testDaylightSavingTransition() {
+        // 2016-03-13 02:00 local time in New York jumps to 03:00.
+        assertSameAsSimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS Z", "America/New_York",
+                sequence(1457852398000L, 4000, 1));
+    }
+
+    @Test
+    public void testPatternsWithoutPatchableMillis() {
+        long[] timestamps = sequence(1459468799500L, 1500, 1);
+        assertSameAsSimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", "UTC", timestamps);
+        assertSameAsSimpleDateFormat("HH:mm:ss.S", "UTC", timestamps);
+        assertSameAsSimpleDateFormat("HH:mm:ss.SSSS", "UTC", timestamps);
+        assertSameAsSimpleDateFormat("SSS 'SSS' HH:mm:ss", "UTC", timestamps);
+        assertSameAsSimpleDateFormat("ss.SSS.SSS", "UTC", timestamps);
+    }
+
+    @Test
+    public void testBeforeEpoch() {
+        assertSameAsSimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", "UTC", sequence(-2500, 2500, 1));
+    }
+}
@@ -0,0 +1,86 @@
+package com.sumologic.logback.json;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.contrib.jackson.JacksonJsonFormatter;
+import com.sumologic.logback.encoder.EventEncoder;
+import com.sumologic.logback.encoder.LayoutEventEncoder;
+import com.sumologic.logback.message.ByteChunkPool;
+import com.sumologic.logback.message.ChunkedOutputStream;
+import org.slf4j.MDC;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares throughput and allocation per event of {@link CustomJsonLayout} (through
+ * {@link LayoutEventEncoder}) and {@link StreamingJsonEncoder}, both writing into pooled chunks.
+ * <p>
+ * Run with: <tt>java -cp ... com.sumologic.logback.json.JsonEncodingBenchmark</tt>
+ */
+public class JsonEncodingBenchmark {
+
+    private static final String TIMESTAMP_FORMAT = "yyyy-MM-dd' 'HH:mm:ss.SSS' 'Z";
+    private static final int ITERATIONS = 500000;
+
+    public static void main(String[] args) throws Exception {
+        LoggerContext context = new LoggerContext();
+        context.putProperty("git_tags", "v1.2.3");
+        context.putProperty("git_branch", "master");
+        context.putProperty("git_version_id", "0123456789abcdef");
+        context.putProperty("application_component_name", "orders");
+        Logger logger = context.getLogger("com.example.Orders");
+
+        MDC.put("request_id", "6f1c2a9e-0b7d-4c55-9a53-2f0e8d1c3b44");
+        MDC.put("user", "jdoe");
+        ILoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO,
+                "Order {} placed for {}", null, new Object[]{42, "jdoe"});
+        event.prepareForDeferredProcessing();
+        MDC.clear();
+
+        CustomJsonLayout layout = new CustomJsonLayout();
+        layout.setContext(context);
+        layout.setJsonFormatter(new JacksonJsonFormatter());
+        layout.setTimestampFormat(TIMESTAMP_FORMAT);
+        layout.setAppendLineSeparator(true);
+        layout.start();
+        LayoutEventEncoder<ILoggingEvent> layoutEncoder = new LayoutEventEncoder<ILoggingEvent>();
+        layoutEncoder.setLayout(layout);
+        layoutEncoder.start();
+
+        StreamingJsonEncoder streamingEncoder = new StreamingJsonEncoder();
+        streamingEncoder.setTimestampFormat(TIMESTAMP_FORMAT);
+        streamingEncoder.setAppendLineSeparator(true);
+        streamingEncoder.start();
+
+        for (int round = 0; round < 3; round++) {
+            boolean report = round == 2;
+            run("CustomJsonLayout", layoutEncoder, event, report);
+            run("StreamingJsonEncoder", streamingEncoder, event, report);
+        }
+    }
+
+    private static void run(String name, EventEncoder<ILoggingEvent> encoder, ILoggingEvent event,
+                            boolean report) throws Exception {
+        ChunkedOutputStream out = new ChunkedOutputStream(new ByteChunkPool(512, 64));
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            encoder.encode(event, out);
+            out.toMessage().release();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        if (report) {
+            System.out.println(String.format("%s: %.0f events/ms, %d bytes allocated/event",
+                    name, ITERATIONS / (elapsed / 1000000.0), allocated / ITERATIONS));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.sumologic.logback.json;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.contrib.jackson.JacksonJsonFormatter;
+import com.sumologic.logback.message.ByteChunkPool;
+import com.sumologic.logback.message.ChunkedOutputStream;
+import com.sumologic.logback.message.PooledMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingJsonEncoderTest {
+
+    private static final String TIMESTAMP_FORMAT = "yyyy-MM-dd' 'HH:mm:ss.SSS' 'Z";
+
+    private LoggerContext context;
+    private Logger logger;
+    private CustomJsonLayout layout;
+    private StreamingJsonEncoder encoder;
+
+    @Before
+    public void setUp() {
+        context = new LoggerContext();
+        context.setName("test-context");
+        context.putProperty("git_tags", "v1.2.3");
+        context.putProperty("git_branch", "master");
+        context.putProperty("application_component_name", "orders");
+        logger = context.getLogger("com.example.Orders");
+
+        JacksonJsonFormatter formatter = new JacksonJsonFormatter();
+        formatter.setPrettyPrint(false);
+
+        layout = new CustomJsonLayout();
+        layout.setContext(context);
+        layout.setJsonFormatter(formatter);
+        layout.setTimestampFormat(TIMESTAMP_FORMAT);
+        layout.setAppendLineSeparator(true);
+
+        encoder = new StreamingJsonEncoder();
+        encoder.setTimestampFormat(TIMESTAMP_FORMAT);
+        encoder.setAppendLineSeparator(true);
+    }
+
+    @After
+    public void tearDown() {
+        MDC.clear();
+    }
+
+    private ILoggingEvent event(String message, Throwable throwable, Object... args) {
+        return new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, throwable, args);
+    }
+
+    private String encode(ILoggingEvent event) throws Exception {
+        ChunkedOutputStream out = new ChunkedOutputStream(new ByteChunkPool(64, 16));
+        encoder.encode(event, out);
+        PooledMessage message = out.toMessage();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        message.writeTo(bytes);
+        return bytes.toString("UTF-8");
+    }
+
+    private void assertSameAsLayout(ILoggingEvent event) throws Exception {
+        layout.start();
+        encoder.start();
+        assertEquals(layout.doLayout(event), encode(event));
+    }
+
+    @Test
+    public void testPlainEvent() throws Exception {
+        assertSameAsLayout(event("Order {} placed", null, 42));
+    }
+
+    @Test
+    public void testMdcAndContextProperties() throws Exception {
+        MDC.put("request_id", "abc-123");
+        MDC.put("user", "jdoe");
+        assertSameAsLayout(event("with mdc", null));
+    }
+
+    @Test
+    public void testMdcWithoutNestedObject() throws Exception {
+        MDC.put("request_id", "abc-123");
+        layout.setIncludeMDC(false);
+        encoder.setIncludeMDC(false);
+        layout.setIncludeMessage(true);
+        encoder.setIncludeMessage(true);
+        assertSameAsLayout(event("raw {}", null, "arg"));
+    }
+
+    @Test
+    public void testOverridingKeysKeepTheirPosition() throws Exception {
+        context.putProperty("message", "from context");
+        context.putProperty("exception", "not an exception");
+        MDC.put("level", "from mdc");
+        MDC.put("git_branch", "feature");
+        MDC.put("mdc", "flat");
+        assertSameAsLayout(event("overridden", null));
+    }
+
+    @Test
+    public void testContextChangeInvalidatesCachedProperties() throws Exception {
+        assertSameAsLayout(event("before", null));
+
+        context.putProperty("git_version_id", "0123abc");
+        context.putProperty("git_tags", "v1.2.4 \"hotfix\"");
+        ILoggingEvent after = event("after", null);
+        assertSameAsLayout(after);
+        assertTrue(encode(after).contains("\"git_tags\":\"v1.2.4 \\\"hotfix\\\"\""));
+    }
+
+    @Test
+    public void testContextPropertiesWithoutPrecedingFields() throws Exception {
+        MDC.put("request_id", "abc-123");
+        layout.setIncludeTimestamp(false);
+        layout.setIncludeLevel(false);
+        layout.setIncludeThreadName(false);
+        layout.setIncludeMDC(false);
+        layout.setIncludeLoggerName(false);
+        layout.setIncludeFormattedMessage(false);
+        layout.setIncludeContextName(false);
+        encoder.setIncludeTimestamp(false);
+        encoder.setIncludeLevel(false);
+        encoder.setIncludeThreadName(false);
+        encoder.setIncludeMDC(false);
+        encoder.setIncludeLoggerName(false);
+        encoder.setIncludeFormattedMessage(false);
+        encoder.setIncludeContextName(false);
+        assertSameAsLayout(event("only properties", null));
+    }
+
+    @Test
+    public void testEscaping() throws Exception {
+        MDC.put("quote\"key", "tab\tvalue");
+        assertSameAsLayout(event("line1\nline2 \"quoted\" back\\slash \u0001 \u00e9\u20ac\ud83d\ude00 </script>", null));
+    }
+
+    @Test
+    public void testException() throws Exception {
+        assertSameAsLayout(event("failed", new IllegalStateException("boom", new RuntimeException("cause"))));
+    }
+
+    @Test
+    public void testRepeatedExceptionWithSuppressedAndEscapedMessages() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            IllegalStateException boom = new IllegalStateException("boom \"" + i + "\"\n\u00e9");
+            boom.addSuppressed(new RuntimeException("while closing\t" + i));
+            assertSameAsLayout(event("failed", boom));
+        }
+    }
+
+    @Test
+    public void testExceptionOverriddenByMdc() throws Exception {
+        MDC.put("exception", "from mdc");
+        assertSameAsLayout(event("failed", new IllegalStateException("boom")));
+    }
+
+    @Test
+    public void testMaxStackFrames() throws Exception {
+        CachingThrowableProxyConverter converter = new CachingThrowableProxyConverter();
+        converter.setOptionList(Arrays.asList("2"));
+        layout.setThrowableProxyConverter(converter);
+        encoder.setMaxStackFrames(2);
+        assertSameAsLayout(event("failed", new IllegalStateException("boom", new RuntimeException("cause"))));
+    }
+
+    @Test
+    public void testWithoutTimestampFormat() throws Exception {
+        layout.setTimestampFormat(null);
+        encoder.setTimestampFormat(null);
+        layout.setAppendLineSeparator(false);
+        encoder.setAppendLineSeparator(false);
+        assertSameAsLayout(event("epoch millis", null));
+    }
+}
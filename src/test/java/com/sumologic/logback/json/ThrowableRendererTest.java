@@ -0,0 +1,111 @@
+package com.sumologic.logback.json;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.pattern.ThrowableProxyConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.sumologic.logback.message.ByteChunkPool;
+import com.sumologic.logback.message.ChunkedOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThrowableRendererTest {
+
+    private Logger logger;
+
+    @Before
+    public void setUp() {
+        logger = new LoggerContext().getLogger("com.example.Orders");
+    }
+
+    private ILoggingEvent event(Throwable throwable) {
+        return new LoggingEvent(Logger.class.getName(), logger, Level.ERROR, "failed", throwable, null);
+    }
+
+    private String convert(ILoggingEvent event, String... options) {
+        ThrowableProxyConverter converter = new ThrowableProxyConverter();
+        converter.setOptionList(Arrays.asList(options));
+        converter.start();
+        return converter.convert(event);
+    }
+
+    private String writeJsonString(ThrowableRenderer renderer, ILoggingEvent event) throws Exception {
+        ChunkedOutputStream out = new ChunkedOutputStream(new ByteChunkPool(64, 16));
+        renderer.writeJsonString(event.getThrowableProxy(), out);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        out.toMessage().writeTo(bytes);
+        return bytes.toString("UTF-8");
+    }
+
+    private Throwable nested(String message) {
+        Exception cause = new RuntimeException("cause of " + message);
+        IllegalStateException e = new IllegalStateException(message, cause);
+        e.addSuppressed(new IllegalArgumentException("suppressed " + message));
+        return e;
+    }
+
+    @Test
+    public void testSameAsThrowableProxyConverter() {
+        ThrowableRenderer renderer = new ThrowableRenderer();
+        ILoggingEvent event = event(nested("boom"));
+        assertEquals(convert(event), renderer.render(event.getThrowableProxy()));
+    }
+
+    @Test
+    public void testRepeatedTraceReusesFrames() {
+        ThrowableRenderer renderer = new ThrowableRenderer();
+        for (int i = 0; i < 5; i++) {
+            ILoggingEvent event = event(nested("boom " + i));
+            assertEquals(convert(event), renderer.render(event.getThrowableProxy()));
+        }
+        // The throwable, its suppressed one and its cause, each thrown from a single place.
+        assertEquals(3, renderer.cachedBlocks());
+    }
+
+    @Test
+    public void testMaxFramesLikeLengthOption() {
+        ThrowableRenderer renderer = new ThrowableRenderer(3, true, ThrowableRenderer.DEFAULT_CACHE_SIZE);
+        ILoggingEvent event = event(nested("boom"));
+        assertEquals(convert(event, "3"), renderer.render(event.getThrowableProxy()));
+    }
+
+    @Test
+    public void testUnfoldedCommonFrames() {
+        ThrowableRenderer renderer = new ThrowableRenderer(Integer.MAX_VALUE, false, 0);
+        ILoggingEvent event = event(nested("boom"));
+        String rendering = renderer.render(event.getThrowableProxy());
+        assertTrue(!rendering.contains("common frames omitted"));
+        assertTrue(convert(event).length() < rendering.length());
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        ThrowableRenderer renderer = new ThrowableRenderer(Integer.MAX_VALUE, true, 2);
+        for (int i = 0; i < 3; i++) {
+            IllegalStateException e = new IllegalStateException("boom " + i);
+            e.setStackTrace(new StackTraceElement[]{new StackTraceElement("com.example.Orders", "place", "Orders.java", i)});
+            ILoggingEvent event = event(e);
+            assertEquals(convert(event), renderer.render(event.getThrowableProxy()));
+            assertTrue(renderer.cachedBlocks() <= 2);
+        }
+    }
+
+    @Test
+    public void testJsonString() throws Exception {
+        ThrowableRenderer renderer = new ThrowableRenderer();
+        for (int i = 0; i < 2; i++) {
+            ILoggingEvent event = event(nested("\"quoted\"\t\u00e9\ud83d\ude00 " + i));
+            String expected = "\"" + new String(JsonStringEncoder.getInstance().quoteAsString(convert(event))) + "\"";
+            assertEquals(expected, writeJsonString(renderer, event));
+        }
+    }
+}
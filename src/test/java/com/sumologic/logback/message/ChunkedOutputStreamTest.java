@@ -0,0 +1,106 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ChunkedOutputStreamTest {
+
+    private static String written(SumoMessage message) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void testUtf8AcrossChunkBoundaries() throws Exception {
+        ByteChunkPool pool = new ByteChunkPool(3, 16);
+        ChunkedOutputStream out = new ChunkedOutputStream(pool);
+
+        String text = "a\u00e9\u20ac\ud83d\ude00b \"json\"\n";
+        out.writeUtf8(text);
+        PooledMessage message = out.toMessage();
+
+        assertEquals(text.getBytes("UTF-8").length, message.length());
+        assertEquals(Utf8.encodedLength(text), message.length());
+        assertEquals(text, written(message));
+        assertEquals(0, out.length());
+    }
+
+    @Test
+    public void testUnpairedSurrogateLikeString() throws Exception {
+        ByteChunkPool pool = new ByteChunkPool(8, 16);
+        ChunkedOutputStream out = new ChunkedOutputStream(pool);
+
+        String text = "x\ud83dy";
+        out.writeUtf8(text);
+        PooledMessage message = out.toMessage();
+
+        assertEquals(new String(text.getBytes("UTF-8"), "UTF-8"), written(message));
+        assertEquals(text.getBytes("UTF-8").length, Utf8.encodedLength(text));
+    }
+
+    @Test
+    public void testReleasedChunksAreReused() throws Exception {
+        ByteChunkPool pool = new ByteChunkPool(4, 16);
+        ChunkedOutputStream out = new ChunkedOutputStream(pool);
+
+        out.write("0123456789".getBytes("UTF-8"));
+        PooledMessage message = out.toMessage();
+        assertEquals(0, pool.available());
+
+        message.release();
+        assertEquals(3, pool.available());
+
+        ByteChunk chunk = pool.acquire();
+        assertEquals(0, chunk.getLength());
+        assertEquals(4, chunk.getData().length);
+
+        assertEquals(2, pool.available());
+
+        out.write('z');
+        assertEquals(1, pool.available());
+        out.discard();
+        assertEquals(2, pool.available());
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        ByteChunkPool pool = new ByteChunkPool(4, 2);
+        ByteChunk first = pool.acquire();
+        first.next = pool.acquire();
+        first.next.next = pool.acquire();
+
+        pool.release(first);
+        assertEquals(2, pool.available());
+        assertSame(first, pool.acquire());
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertTrue;
+
+public class DeferredMessageTest {
+
+    private LoggingEvent event(Throwable throwable) {
+        Logger logger = (Logger) LoggerFactory.getLogger("DeferredMessageTest");
+        return new LoggingEvent(Logger.class.getName(), logger, Level.ERROR, "failed", throwable, null);
+    }
+
+    private Throwable nested() {
+        Exception cause = new IllegalStateException("cause");
+        Exception exception = new RuntimeException("outer", cause);
+        exception.addSuppressed(new IllegalArgumentException("suppressed"));
+        return exception;
+    }
+
+    @Test
+    public void testStackTraceCountsTowardsCost() {
+        long plain = DeferredMessage.estimateCost(event(null));
+        Throwable throwable = nested();
+        long withThrowable = DeferredMessage.estimateCost(event(throwable));
+
+        // At least one line per frame of the outermost trace
+        assertTrue(withThrowable - plain >= throwable.getStackTrace().length * 50L);
+    }
+
+    @Test
+    public void testCausesAndSuppressedCountToo() {
+        long single = DeferredMessage.estimateCost(event(new RuntimeException("outer")));
+        long nested = DeferredMessage.estimateCost(event(nested()));
+
+        assertTrue(nested > single);
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapArenaTest {
+
+    private String text(SumoMessage message) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void testMessageIsCopiedAcrossBlocks() throws Exception {
+        OffHeapArena arena = new OffHeapArena(64, 8);
+        SumoMessage original = new StringMessage("spans three blocks \u00e9");
+        original.setHeaders(new SourceHeaders("name", null, "host", null));
+        original.setLevel(30000);
+        original.setSequence(7);
+
+        SumoMessage stored = arena.store(original);
+        assertTrue(stored instanceof OffHeapMessage);
+        assertEquals("spans three blocks \u00e9", text(stored));
+        assertEquals(21, stored.length());
+        assertEquals(24, stored.cost());
+        assertEquals(24, arena.used());
+        assertEquals(new SourceHeaders("name", null, "host", null), stored.getHeaders());
+        assertEquals(30000, stored.getLevel());
+        assertEquals(7, stored.getSequence());
+    }
+
+    @Test
+    public void testReleasedBlocksAreReused() throws Exception {
+        OffHeapArena arena = new OffHeapArena(16, 8);
+        SumoMessage first = arena.store(new StringMessage("0123456789abcdef"));
+        assertEquals(16, arena.used());
+
+        first.release();
+        assertEquals(0, arena.used());
+
+        SumoMessage second = arena.store(new StringMessage("fedcba9876543210"));
+        assertTrue(second instanceof OffHeapMessage);
+        assertEquals("fedcba9876543210", text(second));
+    }
+
+    @Test
+    public void testMessageStaysOnHeapWhenArenaIsFull() throws Exception {
+        OffHeapArena arena = new OffHeapArena(16, 8);
+        arena.store(new StringMessage("0123456789"));
+
+        SumoMessage tooLarge = new StringMessage("0123456789");
+        assertSame(tooLarge, arena.store(tooLarge));
+        assertEquals(16, arena.used());
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.sumologic.logback.queue.CostBoundedConcurrentQueue;
+import com.sumologic.logback.queue.RingBufferWithFifoEviction;
+
+/**
+ * Compares the cost of the sync policies of the write-ahead log with many threads appending,
+ * each message being acknowledged in batches as <tt>BufferedSumoLogicAppender</tt> would once
+ * sent. Every message then goes into a ring buffer, as in the appender; the run without a log
+ * is the baseline, the lock-free buffer alone.
+ * <p>
+ * Run with: <tt>java -cp ... com.sumologic.logback.message.WriteAheadLogBenchmark [threads] [directory]</tt>
+ */
+public class WriteAheadLogBenchmark {
+
+    private static final int MESSAGES_PER_PRODUCER = 20000;
+    private static final int BATCH = 100;
+    private static final String MESSAGE = "2016-01-01 00:00:00.000 +0000 INFO [main] benchmark message\n";
+
+    public static void main(String[] args) throws Exception {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        File directory = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"),
+                "sumo-wal-benchmark");
+
+        // Warm up all of them before measuring.
+        String[] policies = {null, WriteAheadLog.NEVER, WriteAheadLog.PERIODIC, WriteAheadLog.ALWAYS};
+        for (String policy : policies) {
+            run(policy, directory, 2, false);
+        }
+        for (String policy : policies) {
+            run(policy, directory, producers, true);
+        }
+    }
+
+    private static void run(String policy, File directory, int producers, boolean report) throws Exception {
+        clear(directory);
+        final WriteAheadLog wal = policy != null ? new WriteAheadLog(directory, 8388608, Long.MAX_VALUE) : null;
+        if (wal != null) {
+            wal.setSyncPolicy(policy, 1000);
+        }
+        final RingBufferWithFifoEviction<SumoMessage> buffer = new RingBufferWithFifoEviction<SumoMessage>(
+                1000000, 16384, new CostBoundedConcurrentQueue.CostAssigner<SumoMessage>() {
+                    @Override
+                    public long cost(SumoMessage e) {
+                        return e.cost();
+                    }
+                });
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(producers);
+
+        for (int p = 0; p < producers; p++) {
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    List<SumoMessage> batch = new ArrayList<SumoMessage>(BATCH);
+                    try {
+                        start.await();
+                        for (int i = 0; i < MESSAGES_PER_PRODUCER; i++) {
+                            SumoMessage message = new StringMessage(MESSAGE);
+                            if (wal == null) {
+                                buffer.add(message);
+                                continue;
+                            }
+                            wal.append(message);
+                            buffer.add(message);
+                            batch.add(message);
+                            if (batch.size() == BATCH) {
+                                wal.acknowledge(batch);
+                                batch.clear();
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            });
+            producer.setDaemon(true);
+            producer.start();
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        if (wal != null) {
+            wal.close();
+        }
+        clear(directory);
+
+        if (report) {
+            long total = (long) producers * MESSAGES_PER_PRODUCER;
+            System.out.println(String.format("%s: %d producers, %d appends in %d ms (%.0f appends/ms)",
+                    policy != null ? policy : "no log", producers, total, elapsedNanos / 1000000,
+                    total / (elapsedNanos / 1000000.0)));
+        }
+    }
+
+    private static void clear(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
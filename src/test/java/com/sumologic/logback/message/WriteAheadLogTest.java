@@ -0,0 +1,167 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.message;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(folder.getRoot(), "wal");
+    }
+
+    private int files() {
+        String[] names = directory.list();
+        return names == null ? 0 : names.length;
+    }
+
+    private String text(SumoMessage message) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void testAcknowledgedSegmentsAreDeleted() throws Exception {
+        // Every record fills a segment
+        WriteAheadLog wal = new WriteAheadLog(directory, 1, Long.MAX_VALUE);
+        SumoMessage first = new StringMessage("first");
+        SumoMessage second = new StringMessage("second");
+        SumoMessage third = new StringMessage("third");
+        wal.append(first);
+        wal.append(second);
+        wal.append(third);
+        assertEquals(1, first.getSequence());
+        assertEquals(3, third.getSequence());
+        assertEquals(4, files());
+
+        wal.acknowledge(Arrays.asList(first, third));
+        assertEquals(2, files());
+        assertEquals(0, first.getSequence());
+
+        wal.acknowledge(Arrays.asList(first, second));
+        assertEquals(1, files());
+        assertEquals(0, wal.size());
+    }
+
+    @Test
+    public void testUnacknowledgedMessagesAreReplayed() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(directory, 1, Long.MAX_VALUE);
+        wal.setSyncPolicy(WriteAheadLog.ALWAYS, 0);
+        SumoMessage sent = new StringMessage("sent");
+        SumoMessage unsent = new StringMessage("unsent");
+        unsent.setHeaders(new SourceHeaders("name", "category", null, "a=1"));
+        unsent.setLevel(40000);
+        wal.append(sent);
+        wal.append(unsent);
+        wal.acknowledge(Arrays.asList(sent));
+
+        // Opened again without closing, as after a crash
+        WriteAheadLog reopened = new WriteAheadLog(directory, 1, Long.MAX_VALUE);
+        List<SumoMessage> replayed = reopened.replay();
+        assertEquals(1, replayed.size());
+        SumoMessage message = replayed.get(0);
+        assertEquals("unsent", text(message));
+        assertEquals(2, message.getSequence());
+        assertEquals(40000, message.getLevel());
+        assertEquals(new SourceHeaders("name", "category", null, "a=1"), message.getHeaders());
+        assertTrue(reopened.replay().isEmpty());
+
+        SumoMessage next = new StringMessage("next");
+        reopened.append(next);
+        assertEquals(3, next.getSequence());
+
+        reopened.acknowledge(replayed);
+        reopened.acknowledge(Arrays.asList(next));
+        assertTrue(new WriteAheadLog(directory, 1, Long.MAX_VALUE).replay().isEmpty());
+    }
+
+    @Test
+    public void testTornRecordIsIgnored() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(directory, 1000, Long.MAX_VALUE);
+        wal.append(new StringMessage("whole"));
+        wal.append(new StringMessage("torn"));
+        wal.close();
+
+        File segment = directory.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.setLength(file.length() - 2);
+        } finally {
+            file.close();
+        }
+
+        List<SumoMessage> replayed = new WriteAheadLog(directory, 1000, Long.MAX_VALUE).replay();
+        assertEquals(1, replayed.size());
+        assertEquals("whole", text(replayed.get(0)));
+        assertNull(replayed.get(0).getHeaders());
+    }
+
+    @Test
+    public void testOldestSegmentsDroppedPastMaxSize() throws Exception {
+        // Each record is 24 bytes: room for two segments
+        WriteAheadLog wal = new WriteAheadLog(directory, 1, 50);
+        for (int i = 0; i < 5; i++) {
+            wal.append(new StringMessage("msg"));
+        }
+        assertEquals(48, wal.size());
+
+        List<SumoMessage> replayed = new WriteAheadLog(directory, 1, 50).replay();
+        assertEquals(2, replayed.size());
+        assertEquals(4, replayed.get(0).getSequence());
+    }
+
+    @Test
+    public void testStrayFilesAreIgnored() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(directory, 1000, Long.MAX_VALUE);
+        wal.append(new StringMessage("kept"));
+        wal.close();
+        assertTrue(new File(directory, "sumo-wal-copy.log").createNewFile());
+
+        List<SumoMessage> replayed = new WriteAheadLog(directory, 1000, Long.MAX_VALUE).replay();
+        assertEquals(1, replayed.size());
+        assertEquals("kept", text(replayed.get(0)));
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.queue;
+
+import com.sumologic.logback.message.SourceHeaders;
+import com.sumologic.logback.message.SpilledMessage;
+import com.sumologic.logback.message.StringMessage;
+import com.sumologic.logback.message.SumoMessage;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BufferWithDiskSpilloverTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    private CostBoundedConcurrentQueue.CostAssigner<String> countCost =
+        new CostBoundedConcurrentQueue.CostAssigner<String>() {
+            @Override
+            public long cost(String e) {
+                return 1;
+            }
+        };
+
+    private BufferWithDiskSpillover.Serializer<String> strings =
+        new BufferWithDiskSpillover.Serializer<String>() {
+            @Override
+            public void write(String e, ByteBuffer out) {
+                out.put(e.getBytes(UTF_8));
+            }
+
+            @Override
+            public String read(ByteBuffer in) {
+                byte[] bytes = new byte[in.remaining()];
+                in.get(bytes);
+                return new String(bytes, UTF_8);
+            }
+        };
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(folder.getRoot(), "spill");
+    }
+
+    private int files() {
+        String[] names = directory.list();
+        return names == null ? 0 : names.length;
+    }
+
+    @Test
+    public void testOldestAreSpilledAndDrainedFirst() throws Exception {
+        BufferWithDiskSpillover<String> buffer =
+                new BufferWithDiskSpillover<String>(3, countCost, directory, 64, 1000, strings);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(buffer.add("msg" + i));
+        }
+        assertEquals(10, buffer.size());
+        assertEquals(7, buffer.diskSize());
+
+        List<String> result = new ArrayList<String>();
+        assertEquals(5, buffer.drainTo(result, 5));
+        buffer.add("msg10");
+        buffer.drainTo(result);
+        assertEquals(Arrays.asList("msg0", "msg1", "msg2", "msg3", "msg4", "msg5", "msg6", "msg7", "msg8", "msg9",
+                "msg10"), result);
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.cost());
+    }
+
+    @Test
+    public void testDrainedSegmentsAreDeleted() throws Exception {
+        // 8 bytes a record: 8 records a segment
+        BufferWithDiskSpillover<String> buffer =
+                new BufferWithDiskSpillover<String>(1, countCost, directory, 64, 1000, strings);
+        for (int i = 0; i < 30; i++) {
+            buffer.add("rec" + (char) ('a' + i));
+        }
+        assertEquals(4, files());
+
+        buffer.drainTo(new ArrayList<String>(), 20);
+        assertEquals(2, files());
+    }
+
+    @Test
+    public void testOldestSegmentIsDroppedPastDiskCap() throws Exception {
+        BufferWithDiskSpillover<String> buffer =
+                new BufferWithDiskSpillover<String>(1, countCost, directory, 64, 128, strings);
+        for (int i = 0; i < 30; i++) {
+            buffer.add("rec" + (char) ('a' + i));
+        }
+        assertEquals(2, files());
+        assertEquals(16, buffer.getEvictedCount());
+
+        List<String> result = new ArrayList<String>();
+        buffer.drainTo(result);
+        assertEquals(14, result.size());
+        assertEquals("recq", result.get(0));
+        assertEquals("rec" + (char) ('a' + 29), result.get(13));
+    }
+
+    @Test
+    public void testStaleFilesAreDeleted() throws Exception {
+        BufferWithDiskSpillover<String> buffer =
+                new BufferWithDiskSpillover<String>(1, countCost, directory, 64, 1000, strings);
+        buffer.add("first");
+        buffer.add("second");
+        assertEquals(1, files());
+
+        new BufferWithDiskSpillover<String>(1, countCost, directory, 64, 1000, strings);
+        assertEquals(0, files());
+    }
+
+    @Test
+    public void testMessagesSurviveSpilling() throws Exception {
+        CostBoundedConcurrentQueue.CostAssigner<SumoMessage> messageCost =
+            new CostBoundedConcurrentQueue.CostAssigner<SumoMessage>() {
+                @Override
+                public long cost(SumoMessage e) {
+                    return e.cost();
+                }
+            };
+        BufferWithDiskSpillover<SumoMessage> buffer = new BufferWithDiskSpillover<SumoMessage>(
+                20, messageCost, directory, 1024, 4096, SpilledMessage.SERIALIZER);
+
+        StringMessage message = new StringMessage("spilled message\n");
+        message.setLevel(40000);
+        message.setHeaders(new SourceHeaders("name", "category", null, "a=b"));
+        buffer.add(message);
+        buffer.add(new StringMessage("in memory\n"));
+
+        List<SumoMessage> result = new ArrayList<SumoMessage>();
+        buffer.drainTo(result);
+        assertEquals(2, result.size());
+
+        SumoMessage spilled = result.get(0);
+        assertTrue(spilled instanceof SpilledMessage);
+        assertEquals(40000, spilled.getLevel());
+        assertEquals(new SourceHeaders("name", "category", null, "a=b"), spilled.getHeaders());
+        assertEquals(16, spilled.length());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        spilled.writeTo(out);
+        assertEquals("spilled message\n", out.toString("UTF-8"));
+        assertEquals("in memory\n", result.get(1).toString());
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.sumologic.logback.queue.CostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Compares the throughput of the buffer implementations with many producers and a single
+ * draining consumer, which is how <tt>BufferedSumoLogicAppender</tt> uses them.
+ * <p>
+ * Run with: <tt>java -cp ... com.sumologic.logback.queue.BufferWithEvictionBenchmark [threads]</tt>
+ */
+public class BufferWithEvictionBenchmark {
+
+    private static final int MESSAGES_PER_PRODUCER = 200000;
+    private static final String MESSAGE = "2016-01-01 00:00:00.000 +0000 INFO [main] benchmark message";
+
+    private static final CostAssigner<String> LENGTH = new CostAssigner<String>() {
+        @Override
+        public long cost(String e) {
+            return e.length();
+        }
+    };
+
+    interface BufferFactory {
+        BufferWithEviction<String> create();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final long capacity = 1000000;
+
+        BufferFactory fifo = new BufferFactory() {
+            @Override
+            public BufferWithEviction<String> create() {
+                return new BufferWithFifoEviction<String>(capacity, LENGTH);
+            }
+        };
+        BufferFactory ring = new BufferFactory() {
+            @Override
+            public BufferWithEviction<String> create() {
+                return new RingBufferWithFifoEviction<String>(capacity, 16384, LENGTH);
+            }
+        };
+        BufferFactory priority = new BufferFactory() {
+            @Override
+            public BufferWithEviction<String> create() {
+                return new BufferWithPriorityEviction<String>(capacity, 4, LENGTH,
+                        new BufferWithPriorityEviction.PriorityAssigner<String>() {
+                            @Override
+                            public int priority(String e) {
+                                return 1;
+                            }
+                        });
+            }
+        };
+
+        // Warm up all of them before measuring.
+        run("fifo", fifo, 8, false);
+        run("ring", ring, 8, false);
+        run("priority", priority, 8, false);
+
+        run("fifo", fifo, producers, true);
+        run("ring", ring, producers, true);
+        run("priority", priority, producers, true);
+    }
+
+    private static void run(String name, BufferFactory factory, int producers, boolean report)
+            throws InterruptedException {
+        final BufferWithEviction<String> buffer = factory.create();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(producers);
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        for (int p = 0; p < producers; p++) {
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < MESSAGES_PER_PRODUCER; i++) {
+                        buffer.add(MESSAGE);
+                    }
+                    done.countDown();
+                }
+            });
+            producer.setDaemon(true);
+            producer.start();
+        }
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<String> batch = new ArrayList<String>(20000);
+                while (running.get()) {
+                    batch.clear();
+                    buffer.drainTo(batch);
+                }
+            }
+        });
+        consumer.setDaemon(true);
+        consumer.start();
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        running.set(false);
+        consumer.join();
+
+        if (report) {
+            long total = (long) producers * MESSAGES_PER_PRODUCER;
+            System.out.println(String.format("%s: %d producers, %d adds in %d ms (%.0f adds/ms)",
+                    name, producers, total, elapsedNanos / 1000000,
+                    total / (elapsedNanos / 1000000.0)));
+        }
+    }
+}
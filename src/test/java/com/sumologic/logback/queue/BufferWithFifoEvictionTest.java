@@ -148,4 +148,91 @@ public class BufferWithFifoEvictionTest {
     }
 
 
+
+    @Test
+    public void testOldestSegmentIsEvictedAtOnce() {
+        // Segments of 160 / 16 = 10 elements
+        queue = new BufferWithFifoEviction<Integer>(160, countCost);
+        for (int i = 0; i < 160; i++) {
+            queue.add(i);
+        }
+
+        queue.add(160);
+        assertEquals(151, queue.size());
+        assertEquals(10, queue.getEvictedCount());
+
+        // Room is left for the rest of the segment without evicting again
+        for (int i = 161; i < 170; i++) {
+            queue.add(i);
+        }
+        assertEquals(10, queue.getEvictedCount());
+
+        List<Integer> result = new ArrayList<Integer>();
+        queue.drainTo(result);
+        assertEquals(160, result.size());
+        assertEquals((Integer) 10, result.get(0));
+        assertEquals((Integer) 169, result.get(159));
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testEvictionListenerGetsEveryDroppedElement() {
+        queue = new BufferWithFifoEviction<Integer>(160, countCost);
+        final List<Integer> dropped = new ArrayList<Integer>();
+        queue.setEvictionListener(new BufferWithEviction.EvictionListener<Integer>() {
+            @Override
+            public void evicted(Integer element) {
+                dropped.add(element);
+            }
+        });
+        for (int i = 0; i < 161; i++) {
+            queue.add(i);
+        }
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), dropped);
+    }
+
+    @Test
+    public void testPartialDrainKeepsCosts() {
+        queue = new BufferWithFifoEviction<Integer>(10000, valueCost);
+        for (int i = 1; i <= 100; i++) {
+            queue.add(i);
+        }
+
+        List<Integer> result = new ArrayList<Integer>();
+        assertEquals(30, queue.drainTo(result, 30));
+        assertEquals(70, queue.size());
+        assertEquals(5050 - 465, queue.cost());
+
+        // Eviction still frees what is left of a partly drained segment
+        assertTrue(queue.add(10000));
+        assertEquals(1, queue.size());
+        assertEquals(10000, queue.cost());
+    }
+
+    @Test
+    public void testThresholdListener() {
+        final List<Integer> sizes = new ArrayList<Integer>();
+        queue = new BufferWithFifoEviction<Integer>(100, valueCost);
+        queue.setThresholdListener(3, 50, new BufferWithEviction.ThresholdListener() {
+            @Override
+            public void thresholdReached() {
+                sizes.add(queue.size());
+            }
+        });
+
+        queue.add(1);
+        queue.add(2);
+        assertTrue(sizes.isEmpty());
+        queue.add(3);
+        assertEquals(Arrays.asList(3), sizes);
+
+        queue.drainTo(new ArrayList<Integer>());
+        queue.add(60);
+        assertEquals(Arrays.asList(3, 1), sizes);
+
+        queue.setThresholdListener(0, 0, null);
+        queue.add(4);
+        assertEquals(Arrays.asList(3, 1), sizes);
+    }
 }
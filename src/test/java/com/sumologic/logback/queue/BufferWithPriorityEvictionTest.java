@@ -0,0 +1,136 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BufferWithPriorityEvictionTest {
+
+    private BufferWithPriorityEviction<String> queue;
+
+    // Each element costs 1; its priority is its first character, e.g. "2-error"
+    private CostBoundedConcurrentQueue.CostAssigner<String> countCost;
+    private BufferWithPriorityEviction.PriorityAssigner<String> firstDigit;
+
+    @Before
+    public void setUp() {
+        countCost =
+            new CostBoundedConcurrentQueue.CostAssigner<String>() {
+                @Override
+                public long cost(String e) {
+                    return 1;
+                }
+            };
+
+        firstDigit =
+            new BufferWithPriorityEviction.PriorityAssigner<String>() {
+                @Override
+                public int priority(String e) {
+                    return e.charAt(0) - '0';
+                }
+            };
+    }
+
+    private List<String> drain() {
+        List<String> result = new ArrayList<String>();
+        queue.drainTo(result);
+        return result;
+    }
+
+    @Test
+    public void testDrainsInInsertionOrder() {
+        queue = new BufferWithPriorityEviction<String>(10, 3, countCost, firstDigit);
+        queue.add("0-a");
+        queue.add("2-b");
+        queue.add("1-c");
+        queue.add("0-d");
+
+        List<String> result = new ArrayList<String>();
+        assertEquals(2, queue.drainTo(result, 2));
+        assertEquals(Arrays.asList("0-a", "2-b"), result);
+        assertEquals(Arrays.asList("1-c", "0-d"), drain());
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testLowestPriorityIsEvictedFirst() {
+        queue = new BufferWithPriorityEviction<String>(3, 3, countCost, firstDigit);
+        queue.add("2-error");
+        queue.add("0-debug1");
+        queue.add("1-info");
+        assertTrue(queue.add("0-debug2"));
+        assertTrue(queue.add("1-info2"));
+
+        assertEquals(Arrays.asList("2-error", "1-info", "1-info2"), drain());
+    }
+
+    @Test
+    public void testFloodDoesNotEvictHigherPriorities() {
+        queue = new BufferWithPriorityEviction<String>(3, 3, countCost, firstDigit);
+        queue.add("2-error1");
+        queue.add("2-error2");
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(queue.add("0-debug" + i));
+        }
+
+        assertEquals(Arrays.asList("2-error1", "2-error2", "0-debug999"), drain());
+    }
+
+    @Test
+    public void testLowerPriorityIsDroppedWhenOnlyHigherIsLeft() {
+        queue = new BufferWithPriorityEviction<String>(2, 3, countCost, firstDigit);
+        queue.add("2-error1");
+        queue.add("1-info");
+
+        assertFalse(queue.add("0-debug"));
+        assertTrue(queue.add("2-error2"));
+        assertEquals(Arrays.asList("2-error1", "2-error2"), drain());
+    }
+
+    @Test
+    public void testInsertLarge() {
+        queue = new BufferWithPriorityEviction<String>(10, 3, new CostBoundedConcurrentQueue.CostAssigner<String>() {
+            @Override
+            public long cost(String e) {
+                return e.length();
+            }
+        }, firstDigit);
+        queue.add("0-a");
+
+        assertFalse(queue.add("2-much-too-long"));
+        assertEquals(Arrays.asList("0-a"), drain());
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.queue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentRingQueueTest {
+
+    @Test
+    public void testSlotsRoundedToPowerOfTwo() {
+        assertEquals(1, new ConcurrentRingQueue<String>(1).slots());
+        assertEquals(8, new ConcurrentRingQueue<String>(5).slots());
+        assertEquals(16, new ConcurrentRingQueue<String>(16).slots());
+    }
+
+    @Test
+    public void testOfferAndPollInOrder() {
+        ConcurrentRingQueue<Integer> queue = new ConcurrentRingQueue<Integer>(4);
+        assertNull(queue.poll());
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(queue.offer(i));
+            }
+            assertFalse(queue.offer(4));
+            assertEquals(4, queue.size());
+
+            for (int i = 0; i < 4; i++) {
+                assertEquals((Object) i, queue.poll());
+            }
+            assertNull(queue.poll());
+            assertEquals(0, queue.size());
+        }
+    }
+
+    @Test
+    public void testNoElementLostUnderContention() throws Exception {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final ConcurrentRingQueue<Long> queue = new ConcurrentRingQueue<Long>(256);
+        final AtomicLong consumedSum = new AtomicLong(0);
+        final CountDownLatch done = new CountDownLatch(producers);
+
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long i = 1; i <= perProducer; i++) {
+                        while (!queue.offer(i)) {
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long consumed = 0;
+        while (consumed < producers * perProducer) {
+            Long e = queue.poll();
+            if (e != null) {
+                consumedSum.addAndGet(e);
+                consumed++;
+            }
+        }
+        done.await();
+
+        long expected = producers * ((long) perProducer * (perProducer + 1) / 2);
+        assertEquals(expected, consumedSum.get());
+        assertNull(queue.poll());
+    }
+}
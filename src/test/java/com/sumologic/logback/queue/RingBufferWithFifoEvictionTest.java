@@ -0,0 +1,210 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.logback.queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferWithFifoEvictionTest {
+
+    private RingBufferWithFifoEviction<Integer> queue;
+
+    private CostBoundedConcurrentQueue.CostAssigner<Integer> countCost;
+    private CostBoundedConcurrentQueue.CostAssigner<Integer> valueCost;
+
+
+    @Before
+    public void setUp() {
+        countCost =
+            new CostBoundedConcurrentQueue.CostAssigner<Integer>() {
+                @Override
+                public long cost(Integer e) {
+                    return 1;
+                }
+            };
+
+        valueCost =
+            new CostBoundedConcurrentQueue.CostAssigner<Integer>() {
+                @Override
+                public long cost(Integer e) {
+                    return e;
+                }
+            };
+    }
+
+    @Test
+    public void testEnforceBottomless() {
+        queue = new RingBufferWithFifoEviction<Integer>(2, 16, countCost);
+        queue.add(1);
+        queue.add(2);
+        assertEquals(2, queue.size());
+
+        for (int i = 0; i < 100; i++) {
+            queue.add(3);
+        }
+
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.cost());
+    }
+
+    @Test
+    public void testEvictionWhenOutOfSlots() {
+        queue = new RingBufferWithFifoEviction<Integer>(1000, 4, countCost);
+        for (int i = 1; i <= 6; i++) {
+            queue.add(i);
+        }
+
+        List<Integer> result = new ArrayList<Integer>(4);
+        queue.drainTo(result);
+
+        assertEquals(Arrays.asList(3, 4, 5, 6), result);
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testInsertLarge() {
+        queue = new RingBufferWithFifoEviction<Integer>(1+2+3+4+5, 16, valueCost);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(i);
+        }
+
+        assertFalse(queue.add(1000));
+
+        List<Integer> result = new ArrayList<Integer>(5);
+        queue.drainTo(result);
+
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), result);
+    }
+
+    @Test
+    public void testComplexEviction() {
+        queue = new RingBufferWithFifoEviction<Integer>(1+2+3+4+5, 16, valueCost);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(i);
+        }
+
+        assertFalse(queue.add(100));
+        assertTrue(queue.add(6));
+
+        List<Integer> result = new ArrayList<Integer>(3);
+        queue.drainTo(result);
+
+        assertEquals(Arrays.asList(4, 5, 6), result);
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 8;
+        final int perProducer = 10000;
+        queue = new RingBufferWithFifoEviction<Integer>(Long.MAX_VALUE, 1024, countCost);
+
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.add(i);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long drained = 0;
+        List<Integer> batch = new ArrayList<Integer>();
+        while (done.getCount() > 0 || queue.size() > 0) {
+            batch.clear();
+            drained += queue.drainTo(batch);
+        }
+
+        assertTrue(drained <= producers * perProducer);
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testContendedEvictionNeverRejects() throws Exception {
+        final int producers = 8;
+        final int perProducer = 20000;
+        // Every insert evicts, often while other inserts are between reserving and publishing
+        queue = new RingBufferWithFifoEviction<Integer>(4, 1024, countCost);
+
+        final AtomicInteger rejected = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        if (!queue.add(i)) {
+                            rejected.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        assertEquals(0, rejected.get());
+        assertTrue(queue.cost() <= 4);
+    }
+
+    @Test(timeout = 10000)
+    public void testEvictionGivesBackTheChargedCost() {
+        // Costs which change once inserted, like a message whose estimate is refined
+        RingBufferWithFifoEviction<StringBuilder> buffer = new RingBufferWithFifoEviction<StringBuilder>(10, 16,
+                new CostBoundedConcurrentQueue.CostAssigner<StringBuilder>() {
+                    @Override
+                    public long cost(StringBuilder e) {
+                        return e.length();
+                    }
+                });
+        StringBuilder kept = new StringBuilder("abc");
+        StringBuilder shrunk = new StringBuilder("abcdef");
+        assertTrue(buffer.add(kept));
+        assertTrue(buffer.add(shrunk));
+        shrunk.setLength(1);
+
+        List<StringBuilder> drained = new ArrayList<StringBuilder>();
+        assertEquals(2, buffer.drainTo(drained));
+        assertEquals(0, buffer.cost());
+
+        // Needs the whole capacity; cost left behind by the shrunk element could never be evicted
+        assertTrue(buffer.add(new StringBuilder("0123456789")));
+        assertEquals(10, buffer.cost());
+    }
+}
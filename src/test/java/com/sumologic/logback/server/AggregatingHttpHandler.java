@@ -29,11 +29,14 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Author: Jose Muniz (jose@sumologic.com)
@@ -44,11 +47,26 @@ public class AggregatingHttpHandler implements HttpHandler {
 
     private static String REQUEST_ENCODING = "UTF-8";
     private List<MaterializedHttpRequest> exchanges = new ArrayList<MaterializedHttpRequest>();
+    private int requestsToThrottle = 0;
+    private String retryAfter = null;
+    private int throttledCount = 0;
+    private int requestsUnavailable = 0;
+    private int unavailableCount = 0;
+    private long delay = 0;
+    private int maxBodySize = 0;
+    private int rejectedCount = 0;
 
     // Extract and materialize HTTP Request Body into a String
     private String readRequestBody(HttpExchange httpExchange) throws IOException {
         StringBuilder content = new StringBuilder();
-        InputStreamReader is = new InputStreamReader(httpExchange.getRequestBody(), REQUEST_ENCODING);
+        InputStream body = httpExchange.getRequestBody();
+        String contentEncoding = httpExchange.getRequestHeaders().getFirst("Content-Encoding");
+        if ("gzip".equals(contentEncoding)) {
+            body = new GZIPInputStream(body);
+        } else if ("deflate".equals(contentEncoding)) {
+            body = new InflaterInputStream(body);
+        }
+        InputStreamReader is = new InputStreamReader(body, REQUEST_ENCODING);
         int c;
         while ((c = is.read()) != -1) {
             content.append((char) c);
@@ -69,7 +87,42 @@ public class AggregatingHttpHandler implements HttpHandler {
 
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
-        exchanges.add(requestFor(httpExchange));
+        if (requestsToThrottle > 0) {
+            requestsToThrottle--;
+            throttledCount++;
+            readRequestBody(httpExchange);
+            if (retryAfter != null) {
+                httpExchange.getResponseHeaders().set("Retry-After", retryAfter);
+            }
+            httpExchange.sendResponseHeaders(429, -1);
+            httpExchange.close();
+            return;
+        }
+
+        if (requestsUnavailable > 0) {
+            requestsUnavailable--;
+            unavailableCount++;
+            readRequestBody(httpExchange);
+            httpExchange.sendResponseHeaders(503, -1);
+            httpExchange.close();
+            return;
+        }
+
+        MaterializedHttpRequest request = requestFor(httpExchange);
+        if (maxBodySize > 0 && request.getBody().length() > maxBodySize) {
+            rejectedCount++;
+            httpExchange.sendResponseHeaders(413, -1);
+            httpExchange.close();
+            return;
+        }
+        exchanges.add(request);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
         // Thanks; come again!
         httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
@@ -80,6 +133,39 @@ public class AggregatingHttpHandler implements HttpHandler {
         return Collections.unmodifiableList(exchanges);
     }
 
+    // Answer the next <tt>count</tt> requests with 429, and a Retry-After header unless null.
+    public void throttle(int count, String retryAfter) {
+        this.requestsToThrottle = count;
+        this.retryAfter = retryAfter;
+    }
+
+    // Answer the next <tt>count</tt> requests with 503, once the throttled ones are answered.
+    public void unavailable(int count) {
+        this.requestsUnavailable = count;
+    }
+
+    // Answer every request only after this many ms, like a slow collector
+    public void delay(long delay) {
+        this.delay = delay;
+    }
+
+    // Answer 413 to every request with a longer body
+    public void rejectLargerThan(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    public int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public int getThrottledCount() {
+        return throttledCount;
+    }
+
+    public int getUnavailableCount() {
+        return unavailableCount;
+    }
+
     public void clearExchanges() {
         exchanges.clear();
     }